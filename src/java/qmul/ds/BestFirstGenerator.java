@@ -2,11 +2,18 @@ package qmul.ds;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import edu.stanford.nlp.util.Pair;
+
 import qmul.ds.action.Action;
 import qmul.ds.action.Grammar;
 import qmul.ds.action.LexicalAction;
@@ -104,6 +111,8 @@ public abstract class BestFirstGenerator extends DAGGenerator<DAGTuple, Groundab
 			logger.info(ANSI_YELLOW + "Beam is:"+beamWords + ANSI_RESET);
 
 			for (String word : beamWords) {
+				if (outOfTime())
+					return false;
 				DAG<DAGTuple, GroundableEdge> result = this.generateWord(word, goal);
 				if (result != null) {
 					logger.info("generated:"+word);
@@ -113,7 +122,7 @@ public abstract class BestFirstGenerator extends DAGGenerator<DAGTuple, Groundab
 			}
 		}
 
-		if (!this.repairGeneration)
+		if (!this.repairGeneration || outOfTime())
 			return false;
 			
 		// if we are here, we failed to generate forward. Could be due to:
@@ -154,6 +163,8 @@ public abstract class BestFirstGenerator extends DAGGenerator<DAGTuple, Groundab
 		List<GroundableEdge> backtracked = new ArrayList<GroundableEdge>();
 
 		do {
+			if (outOfTime())
+				break;
 
 			repairableEdge = getState().getParentEdge(current);
 
@@ -174,7 +185,7 @@ public abstract class BestFirstGenerator extends DAGGenerator<DAGTuple, Groundab
 		    // edge.
 		    getState().setCurrentTuple(current);
 		    
-			List<String> beamWords = populateBeam();
+			List<String> beamWords = getRepairBeam(current);
 			logger.debug("Beam is:" + beamWords);
 
 			for (String word : beamWords) {
@@ -190,9 +201,7 @@ public abstract class BestFirstGenerator extends DAGGenerator<DAGTuple, Groundab
 							repairableEdge.getActions().subList(0, repairableEdge.getActions().size() - 1));
 					actions.add(la);
 					
-					//set current tuple to current, so actions are applied in that context
-					getState().setCurrentTuple(current);
-					Tree result = parser.applyActions(current.getTree(), actions);
+					Tree result = getRepairResult(current, repairableEdge, la, actions);
 					
 					//now the current tuple back set it back to the original 
 					getState().setCurrentTuple(rightMostDAGNode);
@@ -253,11 +262,485 @@ public abstract class BestFirstGenerator extends DAGGenerator<DAGTuple, Groundab
 			logger.debug("Now going further back along DAG path.");
 		} while (!getState().isClauseRoot(current) && !getState().isBranching(current));
 
-		// if we are out here we couldn't find a repair point from which to generate.
-		logger.info("Could perform repair.");
+		// if we are out here we couldn't find a repair point from which to generate (in time).
+		logger.info("Could not perform repair.");
 		getState().setCurrentTuple(rightMostDAGNode);
 		return false;
 
 	}
 
+	// ---------------------------------- Repair caches ----------------------------------
+
+	/**
+	 * tuple -> the beam at that tuple, for repairGoal
+	 */
+	protected HashMap<DAGTuple, List<String>> repairBeams = new HashMap<DAGTuple, List<String>>();
+	/**
+	 * repairable edge -> lexical action -> the tree resulting from applying the computational actions on the edge then
+	 * the lexical action at its source (null if they don't apply), for repairGoal
+	 */
+	protected HashMap<GroundableEdge, IdentityHashMap<LexicalAction, Tree>> repairResults = new HashMap<GroundableEdge, IdentityHashMap<LexicalAction, Tree>>();
+	private TTRFormula repairGoal = null;
+
+	private void checkRepairGoal() {
+		if (goal != repairGoal) {
+			repairBeams.clear();
+			repairResults.clear();
+			repairGoal = goal;
+		}
+	}
+
+	/**
+	 * @param tuple
+	 *            the current tuple
+	 * @return populateBeam() at tuple, memoised for the current goal, so repeated repair attempts don't recompute it
+	 */
+	protected List<String> getRepairBeam(DAGTuple tuple) {
+		checkRepairGoal();
+		List<String> result = repairBeams.get(tuple);
+		if (result == null) {
+			result = populateBeam();
+			repairBeams.put(tuple, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param current
+	 *            the source of repairableEdge
+	 * @param repairableEdge
+	 * @param la
+	 * @param actions
+	 *            the computational actions of repairableEdge followed by la
+	 * @return the result of applying actions at current, memoised for the current goal. A copy, as it may go into the
+	 *         DAG. Leaves the current tuple set to current.
+	 */
+	protected Tree getRepairResult(DAGTuple current, GroundableEdge repairableEdge, LexicalAction la,
+			List<Action> actions) {
+		checkRepairGoal();
+		IdentityHashMap<LexicalAction, Tree> results = repairResults.get(repairableEdge);
+		if (results == null) {
+			results = new IdentityHashMap<LexicalAction, Tree>();
+			repairResults.put(repairableEdge, results);
+		}
+		//set current tuple to current, so actions are applied in that context
+		getState().setCurrentTuple(current);
+		if (!results.containsKey(la))
+			results.put(la, parser.applyActions(current.getTree(), actions));
+
+		Tree result = results.get(la);
+		return result == null ? null : result.clone();
+	}
+
+	@Override
+	public void init() {
+		super.init();
+		repairBeams.clear();
+		repairResults.clear();
+	}
+
+	// ---------------------------------- Generation cache ----------------------------------
+
+	/**
+	 * Successful generations, replayed on a repeated goal. Off (null) by default; see
+	 * {@link #setGenerationCache(int)}
+	 */
+	protected GenerationCache generationCache = null;
+	private Lexicon cachedLexicon = null;
+
+	/**
+	 * Turns on caching of generations in {@link #generate()}, keeping the capacity most recently used (see
+	 * {@link GenerationCache}). 0 turns it off.
+	 * 
+	 * @param capacity
+	 */
+	public void setGenerationCache(int capacity) {
+		generationCache = (capacity > 0) ? new GenerationCache(capacity) : null;
+		cachedLexicon = parser.getLexicon();
+	}
+
+	public GenerationCache getGenerationCache() {
+		return generationCache;
+	}
+
+	/**
+	 * Empties the generation cache, if on. To be called whenever something generation depends on (lexicon, model,
+	 * beam) changes. A change of lexicon object is picked up automatically.
+	 */
+	public void clearGenerationCache() {
+		if (generationCache != null)
+			generationCache.clear();
+	}
+
+	/**
+	 * As {@link DAGGenerator#generate()}, but if the generation cache is on, a goal generated before from a similar
+	 * tuple is replayed from the cache, and a new successful generation is added to it.
+	 */
+	@Override
+	public boolean generate() {
+		if (generationCache == null)
+			return super.generate();
+
+		if (parser.getLexicon() != cachedLexicon) {
+			generationCache.clear();
+			cachedLexicon = parser.getLexicon();
+		}
+
+		DAGTuple start = getState().getCurrentTuple();
+		String key = GenerationCache.key(goal, start);
+		List<GenerationCache.Step> cached = generationCache.get(key);
+		if (cached != null) {
+			if (replay(cached))
+				return true;
+			logger.debug("Could not replay cached generation " + cached + ". Generating as normal");
+			generationCache.remove(key);
+		}
+
+		if (!super.generate())
+			return false;
+
+		generationCache.put(key, getState(), start, getState().getCurrentTuple());
+		return true;
+	}
+
+	/**
+	 * Replays steps from the current tuple, adding the words to {@link #generated}
+	 * 
+	 * @param steps
+	 * @return true if all the steps replay and the result subsumes goal. If not, the DAG pointer is put back where it
+	 *         was.
+	 */
+	protected boolean replay(List<GenerationCache.Step> steps) {
+		InteractiveContextParser icp = (InteractiveContextParser) parser;
+		int done = 0;
+		for (GenerationCache.Step step : steps) {
+			if (icp.replayWord(new UtteredWord(step.word, agentName), step.edges, goal) == null)
+				break;
+			done++;
+		}
+		if (done == steps.size() && goal.subsumes(getState().getCurrentTuple().getSemantics())) {
+			for (GenerationCache.Step step : steps)
+				generated.addWord(step.word);
+			logger.info(ANSI_GREEN + "Replayed from cache. Generated: " + generated + ANSI_RESET);
+			return true;
+		}
+		if (done > 0)
+			getState().rollBack(done);
+		return false;
+	}
+
+	// ---------------------------------- Beam search ----------------------------------
+
+	/**
+	 * A partial utterance in {@link #generateBeamSearch(int)}: the words generated from the start tuple, the sum of
+	 * their scores, and the tuples at the end of each of its interpretations, i.e. of its own paths through the DAG, in
+	 * the order the parser would have tried them.
+	 */
+	protected static class Hypothesis implements Comparable<Hypothesis> {
+		final List<String> words;
+		final double score;
+		final List<DAGTuple> tuples;
+
+		Hypothesis(List<String> words, double score, List<DAGTuple> tuples) {
+			this.words = words;
+			this.score = score;
+			this.tuples = tuples;
+		}
+
+		Hypothesis extend(String word, double wordScore, List<DAGTuple> tuples) {
+			List<String> newWords = new ArrayList<String>(words);
+			newWords.add(word);
+			return new Hypothesis(newWords, score + wordScore, tuples);
+		}
+
+		/**
+		 * best first
+		 */
+		@Override
+		public int compareTo(Hypothesis other) {
+			return Double.compare(other.score, score);
+		}
+
+		public String toString() {
+			return words + ":" + score;
+		}
+	}
+
+	/**
+	 * The maximum number of words {@link #generateBeamSearch(int)} will generate
+	 */
+	protected int maxGenerationLength = 20;
+
+	/**
+	 * Subclasses with a model should override this to give the scores their beam was chosen by.
+	 *
+	 * @return the words in {@link #populateBeam()} with their (log prob) scores. By default, all words score 0.
+	 */
+	public List<Pair<String, Double>> populateScoredBeam() {
+		List<Pair<String, Double>> result = new ArrayList<Pair<String, Double>>();
+		for (String word : populateBeam())
+			result.add(new Pair<String, Double>(word, 0.0));
+		return result;
+	}
+
+	/**
+	 * Generates to goal keeping the k best scoring partial utterances alive at each step, rather than committing to
+	 * the first word in the beam that can be generated as {@link #generateNextWord()} does. Each hypothesis is
+	 * extended with every word in its {@link #populateScoredBeam()} that can be generated from it subsuming goal, and
+	 * the k best extensions kept. Stops when the best complete utterance scores at least as well as the best partial
+	 * one, since scores (log probs) can only go down as words are added. No repairs are generated.
+	 *
+	 * Every hypothesis has its own paths through the DAG, one per interpretation of its words, branching off where it
+	 * was extended (see {@link InteractiveContextParser#extendWord(UtteredWord, qmul.ds.formula.Formula)}), so moving
+	 * between them is just moving the pointer, and the parser never backtracks into another hypothesis. Its beam is
+	 * the one at its first interpretation, and a word extends it if it can be generated from any of them, as
+	 * backtracking over its words would find. Hypotheses are expanded one at a time, as they all share the parser's
+	 * DAG. Paths dropped from the beam are removed as it goes.
+	 *
+	 * On success, only the path of the best complete utterance is left in the DAG, with the pointer at its end, and it
+	 * is added to {@link #generated}.
+	 *
+	 * @param k
+	 *            the number of hypotheses to keep
+	 * @return the complete utterances found, best first (empty if none)
+	 */
+	public List<List<String>> generateBeamSearch(int k) {
+		logger.info("Beam search generating to goal: " + goal);
+		InteractiveContextParser icp = (InteractiveContextParser) parser;
+		DAGTuple start = getState().getCurrentTuple();
+		Set<GroundableEdge> startEdges = new HashSet<GroundableEdge>(getState().getOutEdges(start));
+
+		List<Hypothesis> live = new ArrayList<Hypothesis>();
+		live.add(new Hypothesis(new ArrayList<String>(), 0.0, Collections.singletonList(start)));
+		timedOut = false;
+		List<Hypothesis> complete = new ArrayList<Hypothesis>();
+
+		search: for (int length = 0; length <= maxGenerationLength && !live.isEmpty(); length++) {
+			List<Hypothesis> extensions = new ArrayList<Hypothesis>();
+			hypotheses: for (Hypothesis h : live) {
+				if (outOfTime())
+					break search;
+				List<DAGTuple> extendable = new ArrayList<DAGTuple>();
+				for (DAGTuple tuple : h.tuples) {
+					TTRFormula semantics = tuple.getSemantics();
+					if (goal.subsumes(semantics)) {
+						complete.add(new Hypothesis(h.words, h.score, Collections.singletonList(tuple)));
+						continue hypotheses;
+					}
+					if (semantics.removeHead().subsumes(goal))
+						extendable.add(tuple);
+				}
+				if (length == maxGenerationLength || extendable.isEmpty())
+					continue;
+
+				getState().setCurrentTuple(extendable.get(0));
+				List<Pair<String, Double>> beamWords = populateScoredBeam();
+				for (Pair<String, Double> word : beamWords) {
+					if (outOfTime())
+						break search;
+					UtteredWord uttered = new UtteredWord(word.first().toLowerCase(), agentName);
+					List<DAGTuple> extended = new ArrayList<DAGTuple>();
+					for (DAGTuple tuple : extendable) {
+						getState().setCurrentTuple(tuple);
+						extended.addAll(icp.extendWord(uttered, goal));
+					}
+					if (!extended.isEmpty())
+						extensions.add(h.extend(word.first(), word.second(), extended));
+				}
+			}
+			Collections.sort(extensions);
+			live = new ArrayList<Hypothesis>(extensions.subList(0, Math.min(k, extensions.size())));
+			for (Hypothesis h : extensions.subList(live.size(), extensions.size()))
+				for (DAGTuple tuple : h.tuples)
+					discard(tuple, start);
+			logger.debug("Beam: " + live);
+
+			Collections.sort(complete);
+			if (!complete.isEmpty() && (live.isEmpty() || complete.get(0).score >= live.get(0).score))
+				break;
+		}
+		// in case we ran out of time half way through a step
+		Collections.sort(complete);
+
+		List<List<String>> result = new ArrayList<List<String>>();
+		for (Hypothesis h : complete.subList(0, Math.min(k, complete.size())))
+			result.add(h.words);
+
+		if (!complete.isEmpty()) {
+			settle(complete.get(0), start, startEdges);
+			logger.info(ANSI_GREEN + "Success. Generated: " + generated + ANSI_RESET);
+		} else if (timedOut && !live.isEmpty()) {
+			// live is sorted best first
+			settle(live.get(0), start, startEdges);
+			logger.warn(ANSI_RED + "Beam search ran out of time. Best partial: " + generated + ANSI_RESET);
+		} else {
+			settle(new Hypothesis(new ArrayList<String>(), 0.0, Collections.singletonList(start)), start, startEdges);
+			logger.warn(ANSI_RED + "Beam search found no complete utterance" + ANSI_RESET);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes tuple, the end of a hypothesis dropped from the beam, and the tuples above it up to start that no other
+	 * hypothesis goes through
+	 */
+	private void discard(DAGTuple tuple, DAGTuple start) {
+		WordLevelContextDAG dag = (WordLevelContextDAG) getState();
+		while (tuple != start && dag.getChildCount(tuple) == 0) {
+			DAGTuple parent = dag.getUniqueParent(tuple);
+			dag.removeChild(tuple);
+			tuple = parent;
+		}
+	}
+
+	/**
+	 * Leaves the DAG as {@link #generateWord(String, TTRFormula)} would have, had it generated the words of best one
+	 * by one from start: every other path the search added is removed, and the pointer goes to the end of the first
+	 * interpretation of best.
+	 *
+	 * @param startEdges
+	 *            the out-edges start had before the search
+	 */
+	private void settle(Hypothesis best, DAGTuple start, Set<GroundableEdge> startEdges) {
+		WordLevelContextDAG dag = (WordLevelContextDAG) getState();
+		List<GroundableEdge> path = new ArrayList<GroundableEdge>();
+		DAGTuple end = best.tuples.get(0);
+		for (DAGTuple tuple = end; tuple != start; tuple = dag.getSource(path.get(0)))
+			path.add(0, dag.getUniqueParentEdge(tuple));
+
+		DAGTuple tuple = start;
+		for (int i = 0; i <= path.size(); i++) {
+			GroundableEdge onPath = (i < path.size()) ? path.get(i) : null;
+			for (GroundableEdge edge : new ArrayList<GroundableEdge>(dag.getOutEdges(tuple))) {
+				if (edge != onPath && !(tuple == start && startEdges.contains(edge)))
+					dag.removeChild(dag.getDest(edge));
+			}
+			if (onPath == null)
+				break;
+			onPath.setInContext(true);
+			tuple = dag.getDest(onPath);
+		}
+
+		dag.setCurrentTuple(end);
+		dag.thisIsFirstTupleAfterLastWord();
+		dag.setExhausted(false);
+		dag.setRepairProcessing(false);
+		if (!best.words.isEmpty()) {
+			if (best.words.get(best.words.size() - 1).equals(InteractiveContextParser.RELEASE_TURN))
+				parser.getContext().openFloor();
+			else
+				parser.getContext().setWhoHasFloor(agentName);
+		}
+		for (String word : best.words)
+			generated.addWord(word);
+	}
+
+	// ---------------------------------- Deadlines ----------------------------------
+
+	/**
+	 * How a generation with a time budget ended
+	 */
+	public enum GenerationStatus {
+		/** the goal was reached */
+		COMPLETE,
+		/** no way of generating (further) towards the goal was found */
+		FAILED,
+		/** the budget ran out: {@link #generated} holds the best partial utterance found */
+		TIMED_OUT
+	}
+
+	private boolean budgeted = false;
+	private long deadline;
+	private boolean timedOut = false;
+	private GenerationStatus lastStatus = null;
+	private int budgetedGenerations = 0;
+	private int budgetsHit = 0;
+
+	/**
+	 * As {@link #generate()}, but giving up after budgetMillis. The budget is checked before each word in the beam is
+	 * tried, and before each repair point, so can be overrun by the time to try one word.
+	 * 
+	 * @param budgetMillis
+	 * @return the status. Whatever it is, {@link #getGenerated()} has the words generated.
+	 */
+	public GenerationStatus generate(long budgetMillis) {
+		startBudget(budgetMillis);
+		try {
+			return endBudget(generate());
+		} finally {
+			budgeted = false;
+		}
+	}
+
+	/**
+	 * As {@link #generateBeamSearch(int)}, but giving up after budgetMillis, in which case the best partial utterance
+	 * in the beam is generated. The budget is checked before each hypothesis is extended with each word.
+	 * 
+	 * @param k
+	 * @param budgetMillis
+	 * @return the complete utterances found, best first (empty if none). See {@link #getLastStatus()}.
+	 */
+	public List<List<String>> generateBeamSearch(int k, long budgetMillis) {
+		startBudget(budgetMillis);
+		try {
+			List<List<String>> result = generateBeamSearch(k);
+			endBudget(!result.isEmpty());
+			return result;
+		} finally {
+			budgeted = false;
+		}
+	}
+
+	private void startBudget(long budgetMillis) {
+		budgeted = true;
+		timedOut = false;
+		deadline = System.nanoTime() + budgetMillis * 1000000L;
+		budgetedGenerations++;
+	}
+
+	private GenerationStatus endBudget(boolean success) {
+		if (success)
+			lastStatus = GenerationStatus.COMPLETE;
+		else if (timedOut) {
+			lastStatus = GenerationStatus.TIMED_OUT;
+			budgetsHit++;
+			logger.info("Generation ran out of time: " + budgetsHit + " of " + budgetedGenerations
+					+ " budgeted generations so far");
+		} else
+			lastStatus = GenerationStatus.FAILED;
+		return lastStatus;
+	}
+
+	/**
+	 * @return true if generating with a budget and it has run out
+	 */
+	protected boolean outOfTime() {
+		if (budgeted && !timedOut && System.nanoTime() - deadline > 0) {
+			logger.debug("Out of time");
+			timedOut = true;
+		}
+		return budgeted && timedOut;
+	}
+
+	/**
+	 * @return the status of the last generation with a budget
+	 */
+	public GenerationStatus getLastStatus() {
+		return lastStatus;
+	}
+
+	/**
+	 * @return the number of generations with a budget so far
+	 */
+	public int getBudgetedGenerations() {
+		return budgetedGenerations;
+	}
+
+	/**
+	 * @return the number of generations that ran out of their budget so far
+	 */
+	public int getBudgetsHit() {
+		return budgetsHit;
+	}
+
 }
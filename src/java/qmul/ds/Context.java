@@ -1,5 +1,7 @@
 package qmul.ds;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -14,6 +16,7 @@ import org.apache.log4j.Logger;
 
 import edu.uci.ics.jung.graph.Tree;
 import qmul.ds.action.SpeechActInferenceGrammar;
+import qmul.ds.dag.ContextSpillStore;
 import qmul.ds.dag.DAG;
 import qmul.ds.dag.DAGEdge;
 import qmul.ds.dag.DAGTuple;
@@ -82,6 +85,10 @@ public class Context<T extends DAGTuple, E extends DAGEdge> {
 	 * 
 	 */
 	protected Map<String, TreeSet<AustinianProp>> asserted_contents=null;
+	/**
+	 * incremented whenever the participants change, so that what the DAG keeps per participant can be dropped
+	 */
+	protected int participantsVersion=0;
 	protected DAG<T,E> dag;
 	
 	protected String myName;
@@ -91,6 +98,13 @@ public class Context<T extends DAGTuple, E extends DAGEdge> {
 	
 	protected Dialogue dialogueHistory=new Dialogue();
 	
+	/**
+	 * Tuples further back than this many words are spilled out of the heap (see {@link DAG#spillContextBeyondHorizon()}).
+	 * Negative means everything stays resident.
+	 */
+	protected int contextHorizon=-1;
+	protected ContextSpillStore spillStore=null;
+	
 	public void initParticipantContents(Set<String> participants)
 	{
 		asserted_contents=new HashMap<String, TreeSet<AustinianProp>>();
@@ -98,6 +112,7 @@ public class Context<T extends DAGTuple, E extends DAGEdge> {
 		{
 			asserted_contents.put(s, new TreeSet<AustinianProp>());
 		}
+		participantsVersion++;
 		
 	}
 	
@@ -210,11 +225,13 @@ public class Context<T extends DAGTuple, E extends DAGEdge> {
 			return;
 		
 		asserted_contents.put(name, new TreeSet<AustinianProp>());
+		participantsVersion++;
 	}	
 	
 	public void removeParticipant(String name)
 	{
-		asserted_contents.remove(name);
+		if (asserted_contents.remove(name)!=null)
+			participantsVersion++;
 	}
 	
 	public Tree<T,E> getActiveDAG()
@@ -229,6 +246,7 @@ public class Context<T extends DAGTuple, E extends DAGEdge> {
 
 	public void setDAG(DAG<T, E> state) {
 		this.dag=state;
+		this.dag.setSpillStore(spillStore, contextHorizon);
 		
 	}
 
@@ -276,9 +294,64 @@ public class Context<T extends DAGTuple, E extends DAGEdge> {
 		return asserted_contents.keySet();
 	}
 	
+	public int getParticipantsVersion()
+	{
+		return participantsVersion;
+	}
+	
 	public void appendWord(UtteredWord w)
 	{
 		this.dialogueHistory.append(w);
+		dag.spillContextBeyondHorizon();
+	}
+	
+	/**
+	 * Keeps only the trees of the last horizon tuples on the heap. Older ones are written to a memory mapped spill
+	 * file and paged back in on demand, so that the full history is still available, e.g. for {@link #getGroundedContent()}
+	 * and {@link #rollBack(int)}.
+	 * 
+	 * @param horizon number of tuples back from the current one to keep resident. Negative disables spilling.
+	 * @throws UncheckedIOException if the spill file can't be created
+	 */
+	public void setContextHorizon(int horizon)
+	{
+		this.contextHorizon=horizon;
+		if (horizon<0)
+			close();
+		else if (spillStore==null)
+			spillStore=openSpillStore();
+		
+		dag.setSpillStore(spillStore, contextHorizon);
+	}
+	
+	private static ContextSpillStore openSpillStore()
+	{
+		try{
+			return new ContextSpillStore();
+		}catch(IOException e)
+		{
+			throw new UncheckedIOException("Could not create context spill store", e);
+		}
+	}
+	
+	/**
+	 * Closes and deletes the spill file, if there is one (see {@link #setContextHorizon(int)}), after paging the trees
+	 * spilled to it back in. Should be called when a context with a horizon is no longer needed.
+	 */
+	public void close()
+	{
+		if (spillStore==null)
+			return;
+		
+		dag.unspillAll();
+		spillStore.close();
+		spillStore=null;
+		dag.setSpillStore(null, contextHorizon);
+	}
+	
+	public int getContextHorizon()
+	{
+		return contextHorizon;
 	}
 	
 	
@@ -368,6 +441,7 @@ public class Context<T extends DAGTuple, E extends DAGEdge> {
 		
 		dag=(DAG<T, E>) new WordLevelContextDAG();
 		dag.setContext(this);
+		initSpillStore();
 		resetVariablePools();
 		initParticipantContents(getParticipants());
 		this.dialogueHistory.clear();
@@ -380,11 +454,24 @@ public class Context<T extends DAGTuple, E extends DAGEdge> {
 		//dag.init();
 		dag=(DAG<T, E>) new WordLevelContextDAG();
 		dag.setContext(this);
+		initSpillStore();
 		this.dialogueHistory.clear();
 		resetVariablePools();
 		initParticipantContents(new HashSet<String>(participants));
 	}
 
+	/**
+	 * The old dag is thrown away on init, so its spill file is closed, and a new one opened if there is a horizon.
+	 */
+	private void initSpillStore()
+	{
+		close();
+		if (contextHorizon>=0)
+			spillStore=openSpillStore();
+		
+		dag.setSpillStore(spillStore, contextHorizon);
+	}
+
 	public void setRepairProcessing(boolean repairing) {
 		dag.setRepairProcessing(repairing);
 		
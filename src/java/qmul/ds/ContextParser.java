@@ -11,7 +11,6 @@ package qmul.ds;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.ObjectInputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -102,10 +101,12 @@ public class ContextParser extends Parser<ContextParserTuple> {
 				logger.info("Found complete tuple. Adding to context:" + tuple);
 				state.add(new ContextParserTuple(tuple));
 				// state.add(tuple);
-				logger.trace("Actions leading to complete tuple are:");
-				ArrayList<Action> actions = tuple.getActions();
-				for (Action a : actions)
-					logger.trace(a);
+				if (logger.isTraceEnabled()) {
+					// getActions() copies the whole context
+					logger.trace("Actions leading to complete tuple are:");
+					for (Action a : tuple.getActions())
+						logger.trace(a);
+				}
 			}
 		}
 
@@ -10,7 +10,11 @@ package qmul.ds;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
@@ -18,8 +22,11 @@ import edu.stanford.nlp.util.Pair;
 
 import qmul.ds.action.Action;
 import qmul.ds.action.ComputationalAction;
+import qmul.ds.action.LexicalAction;
+import qmul.ds.action.atomic.Effect;
 import qmul.ds.action.atomic.IfThenElse;
 import qmul.ds.tree.Tree;
+import qmul.ds.tree.label.Label;
 
 /**
  * A DS {@link ParserTuple} with contextual word & action sequences (in order of occurrence i.e. most recent last)
@@ -30,17 +37,36 @@ public class ContextParserTuple extends ParserTuple {
 
 	private static Logger logger = Logger.getLogger(ContextParserTuple.class);
 
-	private ArrayList<String> words;
-	private ArrayList<Action> actions;
+	/**
+	 * Persistent sequences, shared with the tuple this was derived from, so extending the context costs O(1)
+	 */
+	private ContextSequence<String> words;
+	private ContextSequence<Action> actions;
 	private ContextParserTuple previous;
 
+	/**
+	 * actions as a list, for random access by position. Built along with the trigger index.
+	 */
+	private transient ArrayList<Action> indexedActions = null;
+
+	/**
+	 * Index from (metavariable free) trigger labels to the positions of the lexical action effects in actions that have
+	 * them in their IF clause. Positions are encoded by {@link #position(int, int)}. Built lazily by
+	 * {@link #getTriggerCandidates(Collection)}, and thrown away when an action is added.
+	 */
+	private transient Map<String, TreeSet<Long>> triggerIndex = null;
+	/**
+	 * Positions of effects whose triggers contain metavariables, and so can't be indexed by their string form.
+	 */
+	private transient TreeSet<Long> unindexedTriggers = null;
+
 	/**
 	 * A new tuple containing the AXIOM tree with an empty context
 	 */
 	public ContextParserTuple() {
 		super();
-		words = new ArrayList<String>();
-		actions = new ArrayList<Action>();
+		words = ContextSequence.empty();
+		actions = ContextSequence.empty();
 		previous = null;
 	}
 
@@ -63,24 +89,37 @@ public class ContextParserTuple extends ParserTuple {
 	 * @param tree
 	 */
 	public ContextParserTuple(Tree tree, ArrayList<String> words, ArrayList<Action> actions, ContextParserTuple previous) {
+		this(tree, ContextSequence.of(words), ContextSequence.of(actions), previous);
+	}
+
+	/**
+	 * A new tuple containing the given tree, sharing the given word and action sequences, and a ref to the previous
+	 * context
+	 * 
+	 * @param tree
+	 */
+	private ContextParserTuple(Tree tree, ContextSequence<String> words, ContextSequence<Action> actions,
+			ContextParserTuple previous) {
 		super(tree);
-		this.words = new ArrayList<String>(words);
-		this.actions = new ArrayList<Action>(actions);
+		this.words = words;
+		this.actions = actions;
 		this.previous = previous;
 	}
 
 	/**
-	 * @return the word sequence in context (most recent last)
+	 * @return a copy of the word sequence in context (most recent last). O(n): use {@link #getWordsByRecency()} to
+	 *         search back through context
 	 */
 	public ArrayList<String> getWords() {
-		return words;
+		return words.toList();
 	}
 
 	/**
-	 * @return the action sequence in context (most recent last)
+	 * @return a copy of the action sequence in context (most recent last). O(n): use {@link #getActionsByRecency()} to
+	 *         search back through context
 	 */
 	public ArrayList<Action> getActions() {
-		return actions;
+		return actions.toList();
 	}
 
 	/**
@@ -96,7 +135,7 @@ public class ContextParserTuple extends ParserTuple {
 	 * @param word
 	 */
 	public void addWord(String word) {
-		words.add(word);
+		words = words.append(word);
 	}
 
 	/**
@@ -114,22 +153,131 @@ public class ContextParserTuple extends ParserTuple {
 		 * for (Effect e : la.getEffects()) { actions.add(new LexicalAction(la.getWord(), e)); } } else
 		 */
 
-		actions.add(action);
+		actions = actions.append(action);
+		triggerIndex = null;
+		unindexedTriggers = null;
+		indexedActions = null;
+
+	}
+
+	private static long position(int action, int effect) {
+		return ((long) action << 32) | effect;
+	}
+
+	public static int actionIndex(long position) {
+		return (int) (position >>> 32);
+	}
+
+	public static int effectIndex(long position) {
+		return (int) position;
+	}
+
+	private void buildTriggerIndex() {
+		triggerIndex = new HashMap<String, TreeSet<Long>>();
+		unindexedTriggers = new TreeSet<Long>();
+		indexedActions = actions.toList();
+		for (int i = 0; i < indexedActions.size(); i++) {
+			if (!(indexedActions.get(i) instanceof LexicalAction))
+				continue;
 
+			Effect[] effects = ((LexicalAction) indexedActions.get(i)).getEffects();
+			for (int j = 0; j < effects.length; j++) {
+				for (Label trigger : ((IfThenElse) effects[j]).getTriggers()) {
+					if (!trigger.getMetas().isEmpty()) {
+						unindexedTriggers.add(position(i, j));
+						continue;
+					}
+					String key = trigger.toString();
+					if (!triggerIndex.containsKey(key))
+						triggerIndex.put(key, new TreeSet<Long>());
+
+					triggerIndex.get(key).add(position(i, j));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks up the lexical action effects in this context which might have all of triggers in their IF clause, without
+	 * going through every recorded action. Candidates still need checking with {@link IfThenElse#hasTrigger(Label)}.
+	 * 
+	 * @param triggers
+	 * @return candidate positions, most recent first (see {@link #actionIndex(long)} and {@link #effectIndex(long)}),
+	 *         or null if triggers is empty or contains metavariables, in which case the context has to be scanned.
+	 */
+	public NavigableSet<Long> getTriggerCandidates(Collection<Label> triggers) {
+		if (triggers.isEmpty())
+			return null;
+
+		for (Label trigger : triggers)
+			if (!trigger.getMetas().isEmpty())
+				return null;
+
+		if (triggerIndex == null)
+			buildTriggerIndex();
+
+		TreeSet<Long> result = null;
+		for (Label trigger : triggers) {
+			TreeSet<Long> positions = new TreeSet<Long>(unindexedTriggers);
+			if (triggerIndex.containsKey(trigger.toString()))
+				positions.addAll(triggerIndex.get(trigger.toString()));
+
+			if (result == null)
+				result = positions;
+			else
+				result.retainAll(positions);
+		}
+		return result.descendingSet();
+	}
+
+	/**
+	 * @param position
+	 *            as returned by {@link #getTriggerCandidates(Collection)}
+	 * @return the lexical action at position
+	 */
+	public LexicalAction getLexicalAction(long position) {
+		if (indexedActions == null)
+			buildTriggerIndex();
+
+		return (LexicalAction) indexedActions.get(actionIndex(position));
+	}
+
+	/**
+	 * @param position
+	 * @return the actions in context from the effect at position onwards, with lexical actions split into one lexical
+	 *         action per effect
+	 */
+	public ArrayList<Action> getActionsFrom(long position) {
+		if (indexedActions == null)
+			buildTriggerIndex();
+
+		ArrayList<Action> result = new ArrayList<Action>();
+		for (int i = actionIndex(position); i < indexedActions.size(); i++) {
+			Action a = indexedActions.get(i);
+			if (!(a instanceof LexicalAction)) {
+				result.add(a);
+				continue;
+			}
+			LexicalAction la = (LexicalAction) a;
+			Effect[] effects = la.getEffects();
+			for (int j = (i == actionIndex(position) ? effectIndex(position) : 0); j < effects.length; j++)
+				result.add(new LexicalAction(la.getWord(), effects[j]));
+		}
+		return result;
 	}
 
 	/**
 	 * @return a contextual word iterator, most recent first - use hasPrevious(), previous() to traverse
 	 */
 	public ListIterator<String> getWordsByRecency() {
-		return words.listIterator(words.size());
+		return words.byRecency();
 	}
 
 	/**
 	 * @return a contextual action iterator, most recent first - use hasPrevious(), previous() to traverse
 	 */
 	public ListIterator<Action> getActionsByRecency() {
-		return actions.listIterator(actions.size());
+		return actions.byRecency();
 	}
 
 	/*
@@ -155,7 +303,7 @@ public class ContextParserTuple extends ParserTuple {
 
 	public Collection<ContextParserTuple> execExhaustively(Action ca, String word) {
 
-		Collection<Pair<? extends Action, Tree>> trees = ca.execExhaustively(tree, this);
+		Collection<Pair<? extends Action, Tree>> trees = ca.execExhaustively(getTree(), this);
 		if (trees == null)
 			return null;
 		if (trees.isEmpty())
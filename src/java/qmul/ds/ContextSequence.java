@@ -0,0 +1,186 @@
+package qmul.ds;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable, singly linked sequence (most recent element at the head), used for the word & action context of
+ * {@link ContextParserTuple}s. Appending shares the whole of the existing sequence, so extending the context of a
+ * tuple is O(1) in time and memory however long the utterance, and all tuples derived from the same ancestor share
+ * its context.
+ *
+ * @author Arash
+ *
+ * @param <E>
+ */
+public class ContextSequence<E> implements Iterable<E>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ContextSequence<?> EMPTY = new ContextSequence<Object>(null, null);
+
+	// see writeReplace()
+	private final transient E last;
+	private final transient ContextSequence<E> rest;
+	private final int size;
+
+	private ContextSequence(E last, ContextSequence<E> rest) {
+		this.last = last;
+		this.rest = rest;
+		this.size = (rest == null) ? 0 : rest.size + 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <E> ContextSequence<E> empty() {
+		return (ContextSequence<E>) EMPTY;
+	}
+
+	/**
+	 * @param elements
+	 * @return a sequence with the elements of the list, in the same order (last element most recent)
+	 */
+	public static <E> ContextSequence<E> of(List<E> elements) {
+		ContextSequence<E> result = empty();
+		for (E e : elements)
+			result = result.append(e);
+		return result;
+	}
+
+	/**
+	 * @param e
+	 * @return a new sequence with e added as the most recent element. This sequence is unchanged.
+	 */
+	public ContextSequence<E> append(E e) {
+		return new ContextSequence<E>(e, this);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the most recent element
+	 */
+	public E last() {
+		if (isEmpty())
+			throw new NoSuchElementException();
+		return last;
+	}
+
+	/**
+	 * @return a copy of this sequence as a list, most recent last. O(n)
+	 */
+	public ArrayList<E> toList() {
+		ArrayList<E> result = new ArrayList<E>(size);
+		for (ContextSequence<E> s = this; !s.isEmpty(); s = s.rest)
+			result.add(null);
+		int i = size - 1;
+		for (ContextSequence<E> s = this; !s.isEmpty(); s = s.rest)
+			result.set(i--, s.last);
+		return result;
+	}
+
+	/**
+	 * @return an iterator starting after the most recent element, to be traversed backwards with hasPrevious(),
+	 *         previous(), like {@link List#listIterator(int)} with the list size. Doesn't copy the sequence, and doesn't
+	 *         support modification or going forwards again.
+	 */
+	public ListIterator<E> byRecency() {
+		return new ListIterator<E>() {
+			private ContextSequence<E> cur = ContextSequence.this;
+
+			@Override
+			public boolean hasPrevious() {
+				return !cur.isEmpty();
+			}
+
+			@Override
+			public E previous() {
+				if (cur.isEmpty())
+					throw new NoSuchElementException();
+				E e = cur.last;
+				cur = cur.rest;
+				return e;
+			}
+
+			@Override
+			public int previousIndex() {
+				return cur.size - 1;
+			}
+
+			@Override
+			public int nextIndex() {
+				return cur.size;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return false;
+			}
+
+			@Override
+			public E next() {
+				throw new UnsupportedOperationException("context sequences are traversed most recent first");
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void set(E e) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void add(E e) {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Iterates oldest first, via a copy. Use {@link #byRecency()} to go backwards without copying.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		return toList().iterator();
+	}
+
+	@Override
+	public String toString() {
+		return toList().toString();
+	}
+
+	/**
+	 * Serialised as a flat list, rather than by recursing down the links (which would overflow the stack on a long
+	 * dialogue)
+	 */
+	private Object writeReplace() {
+		return new SerializedForm<E>(toList());
+	}
+
+	private static class SerializedForm<E> implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final ArrayList<E> elements;
+
+		SerializedForm(ArrayList<E> elements) {
+			this.elements = elements;
+		}
+
+		private Object readResolve() {
+			return ContextSequence.of(elements);
+		}
+	}
+
+}
@@ -611,7 +611,7 @@ public abstract class DAGParser<T extends DAGTuple, E extends DAGEdge>
 	public abstract boolean replayBacktrackedActions(UtteredWord w);
 
 	public Tree complete() {
-		return this.complete(context.getDAG().getCurrentTuple().tree).second;
+		return this.complete(context.getDAG().getCurrentTuple().getTree()).second;
 	}
 	
 	public boolean isRepairProcessingEnabled()
@@ -0,0 +1,215 @@
+package qmul.ds;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import qmul.ds.action.Action;
+import qmul.ds.action.LexicalAction;
+import qmul.ds.dag.CompletionEdge;
+import qmul.ds.dag.DAG;
+import qmul.ds.dag.DAGTuple;
+import qmul.ds.dag.GroundableEdge;
+import qmul.ds.formula.TTRField;
+import qmul.ds.formula.TTRFormula;
+import qmul.ds.formula.TTRRecordType;
+import qmul.ds.formula.Variable;
+
+/**
+ * A bounded, least recently used cache of successful generations, for dialogue systems which keep generating the same
+ * confirmations and questions from the same goals. Keyed by the goal with its labels canonicalised (so goals equal up
+ * to relabelling share an entry), plus a fingerprint of the tree generation starts from. Stores the words generated
+ * with the names of the actions on their edges, so that a hit can be replayed into the DAG (see
+ * {@link InteractiveContextParser#replayWord(qmul.ds.dag.UtteredWord, List, qmul.ds.formula.Formula)}) without
+ * searching. The actions themselves aren't kept, as their metavariables & variables are bound to the generation they
+ * were recorded from: replaying looks them up again in the grammar and lexicon.
+ *
+ * Only paths made of plain word and completion edges are cached, i.e. not those with repairs. A hit is not guaranteed
+ * to replay (e.g. if it relied on something in context the fingerprint doesn't capture), so callers should check the
+ * result and fall back to generating as normal.
+ *
+ * @author Arash
+ *
+ */
+public class GenerationCache {
+
+	protected static Logger logger = Logger.getLogger(GenerationCache.class);
+
+	private static final Pattern NUMBERED_VARIABLE = Pattern.compile("\\b([A-Za-z]+)\\d+\\b");
+
+	/**
+	 * A word generated, with the names of the actions of the edges it was generated along: the last is the word edge,
+	 * whose last action is the word's lexical action, any before it completion edges.
+	 */
+	public static class Step {
+		public final String word;
+		public final List<List<String>> edges;
+
+		Step(String word, List<List<String>> edges) {
+			this.word = word;
+			this.edges = edges;
+		}
+
+		public String toString() {
+			return word;
+		}
+	}
+
+	private final LinkedHashMap<String, List<Step>> entries;
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of generations to keep
+	 */
+	public GenerationCache(final int capacity) {
+		this.entries = new LinkedHashMap<String, List<Step>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, List<Step>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param goal
+	 * @param start
+	 *            the tuple generation starts from
+	 * @return the cache key for generating goal from start
+	 */
+	public static String key(TTRFormula goal, DAGTuple start) {
+		return canonical(goal) + "@" + fingerprint(start);
+	}
+
+	/**
+	 * @param goal
+	 * @return goal as a string, with the labels of a record type renamed in field order, so that goals equal up to
+	 *         relabelling have the same string
+	 */
+	public static String canonical(TTRFormula goal) {
+		if (!(goal instanceof TTRRecordType))
+			return goal.toString();
+
+		TTRRecordType rt = (TTRRecordType) goal;
+		HashMap<Variable, Variable> map = new HashMap<Variable, Variable>();
+		for (TTRField f : rt.getFields())
+			if (!f.getLabel().equals(TTRRecordType.HEAD))
+				map.put(new Variable(f.getLabel()), new Variable("_" + map.size()));
+		return rt.relabel(map).toString();
+	}
+
+	/**
+	 * @param tuple
+	 * @return a fingerprint of the tree at tuple: its string, with its (meta)variables renumbered in order of first
+	 *         appearance, so that trees equal up to renumbering have the same fingerprint, but not trees which differ
+	 *         in which variables are the same
+	 */
+	public static String fingerprint(DAGTuple tuple) {
+		Matcher m = NUMBERED_VARIABLE.matcher(tuple.getTree().toString());
+		HashMap<String, String> renumbered = new HashMap<String, String>();
+		StringBuilder result = new StringBuilder();
+		while (m.find()) {
+			String name = renumbered.get(m.group());
+			if (name == null) {
+				name = m.group(1) + "_" + renumbered.size();
+				renumbered.put(m.group(), name);
+			}
+			m.appendReplacement(result, name);
+		}
+		m.appendTail(result);
+		return result.toString();
+	}
+
+	/**
+	 * @param key
+	 * @return the generation stored under key, or null
+	 */
+	public synchronized List<Step> get(String key) {
+		List<Step> result = entries.get(key);
+		if (result == null)
+			misses++;
+		else
+			hits++;
+		return result;
+	}
+
+	/**
+	 * Records the path in dag from start to end under key, unless it has edges other than word and completion edges
+	 *
+	 * @param key
+	 * @param dag
+	 * @param start
+	 * @param end
+	 * @return true if the path was cached
+	 */
+	public synchronized boolean put(String key, DAG<DAGTuple, GroundableEdge> dag, DAGTuple start, DAGTuple end) {
+		List<Step> steps = new ArrayList<Step>();
+		List<List<String>> completions = new ArrayList<List<String>>();
+		List<GroundableEdge> path = new ArrayList<GroundableEdge>();
+		for (DAGTuple t = end; !t.equals(start);) {
+			GroundableEdge edge = dag.getParentEdge(t);
+			if (edge == null)
+				return false;
+			path.add(0, edge);
+			t = dag.getSource(edge);
+		}
+
+		for (GroundableEdge edge : path) {
+			if (edge instanceof CompletionEdge) {
+				completions.add(names(edge.getActions()));
+				continue;
+			}
+			List<Action> actions = edge.getActions();
+			if (edge.getClass() != GroundableEdge.class || edge.word() == null || actions.isEmpty()
+					|| !(actions.get(actions.size() - 1) instanceof LexicalAction)) {
+				logger.debug("Not caching generation with edge " + edge);
+				return false;
+			}
+			completions.add(names(actions));
+			steps.add(new Step(edge.word().word(), completions));
+			completions = new ArrayList<List<String>>();
+		}
+		if (steps.isEmpty() || !completions.isEmpty())
+			return false;
+
+		entries.put(key, steps);
+		return true;
+	}
+
+	private static List<String> names(List<Action> actions) {
+		List<String> result = new ArrayList<String>();
+		for (Action a : actions)
+			result.add(a.getName());
+		return result;
+	}
+
+	public synchronized void remove(String key) {
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+
+}
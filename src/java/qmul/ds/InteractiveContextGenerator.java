@@ -126,7 +126,7 @@ public class InteractiveContextGenerator extends
 
 		
 		Pair<List<Action>, Tree> initPair = new Pair<List<Action>, Tree>(
-				new ArrayList<Action>(), parser.getState().getCurrentTuple().tree.clone());
+				new ArrayList<Action>(), parser.getState().getCurrentTuple().getTree().clone());
 
 		initPair = parser.adjustWithNonOptionalGrammar(initPair);
 
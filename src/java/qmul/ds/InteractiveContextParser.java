@@ -18,6 +18,7 @@ import qmul.ds.action.ComputationalAction;
 import qmul.ds.action.Grammar;
 import qmul.ds.action.LexicalAction;
 import qmul.ds.action.Lexicon;
+import qmul.ds.action.SpeechActInferenceGrammar;
 import qmul.ds.dag.ActionReplayEdge;
 import qmul.ds.dag.DAG;
 import qmul.ds.dag.DAGEdge;
@@ -30,6 +31,7 @@ import qmul.ds.formula.Formula;
 import qmul.ds.formula.TTRFormula;
 import qmul.ds.formula.TTRRecordType;
 import qmul.ds.gui.ParserPanel;
+import qmul.ds.tree.Node;
 import qmul.ds.tree.Tree;
 
 /**
@@ -162,6 +164,15 @@ public class InteractiveContextParser extends DAGParser<DAGTuple, GroundableEdge
 		context = new Context<DAGTuple, GroundableEdge>(new WordLevelContextDAG(), DEFAULT_NAME);
 	}
 
+	/**
+	 * A parser with a lexicon already in memory, e.g. one just learned (see
+	 * {@link qmul.ds.learn.WordHypothesisBase#getLearnedLexicon(int)}), rather than loaded from a resource dir.
+	 */
+	public InteractiveContextParser(Lexicon lexicon, Grammar grammar, SpeechActInferenceGrammar sa) {
+		super(lexicon, grammar, sa);
+		context = new Context<DAGTuple, GroundableEdge>(new WordLevelContextDAG(), this.sa_grammar, DEFAULT_NAME);
+	}
+
 
 
 	public InteractiveContextParser(Lexicon lexicon, Grammar grammar, ParserPanel p) {
@@ -306,43 +317,7 @@ public class InteractiveContextParser extends DAGParser<DAGTuple, GroundableEdge
 		/**
 		 * Now we do the left adjustment:
 		 */
-		Pair<List<Action>, Tree> initPair = new Pair<List<Action>, Tree>(new ArrayList<Action>(),
-				getState().getCurrentTuple().tree.clone());
-
-		initPair = adjustWithNonOptionalGrammar(initPair);
-
-		List<Pair<List<Action>, Tree>> global = new ArrayList<Pair<List<Action>, Tree>>();
-		global.add(initPair);
-		// this is to detect loops. loops are there because of things like
-		// AnticipationL, Completion....
-		HashMap<ComputationalAction, HashSet<Tree>> tried = new HashMap<ComputationalAction, HashSet<Tree>>();
-		for (ComputationalAction action : optionalGrammar.values()) {
-			tried.put(action, new HashSet<Tree>());
-		}
-
-		for (int i = 0; i < global.size(); i++) {
-			Pair<List<Action>, Tree> cur = global.get(i);
-
-			for (ComputationalAction ca : optionalGrammar.values()) {
-				if (tried.get(ca).contains(cur.second))
-					continue;
-
-				tried.get(ca).add(cur.second);
-				logger.debug("Applying ca: " + ca);
-				logger.debug("to: " + cur.second);
-
-				Tree res = ca.exec(cur.second.clone(), context);
-				logger.debug("result: " + res);
-				if (res != null) {
-					List<Action> newActions = new ArrayList<Action>(cur.first);
-					newActions.add(ca.instantiate());
-					Pair<List<Action>, Tree> newPair = new Pair<List<Action>, Tree>(newActions, res);
-					Pair<List<Action>, Tree> adjusted = adjustWithNonOptionalGrammar(newPair);
-					global.add(adjusted);
-				}
-			}
-
-		}
+		List<Pair<List<Action>, Tree>> global = leftAdjustments(getState().getCurrentTuple().getTree());
 		logger.debug("Now attempting to apply lexical action for:" + getState().wordStack().peek());
 		for (Pair<List<Action>, Tree> pair : global) {
 
@@ -557,8 +532,157 @@ public class InteractiveContextParser extends DAGParser<DAGTuple, GroundableEdge
 
 		return this.getState();
 	}
-	
-	
+
+	/**
+	 * Adds an edge to the current tuple for each way word can be generated from it subsuming goal, as the first step
+	 * of {@link #generateWord(UtteredWord, Formula)} does, but without going along any of them, and without
+	 * backtracking over earlier words if there are none. The out-edges the tuple already has are left alone, so a
+	 * generator can keep continuations of the same tuple with different words in the DAG side by side (see
+	 * {@link BestFirstGenerator#generateBeamSearch(int)}). The pointer stays where it is.
+	 *
+	 * @param word
+	 * @param goal
+	 * @return the tuple at the end of each new word edge, in the order the parser would go along them
+	 */
+	public synchronized List<DAGTuple> extendWord(UtteredWord word, Formula goal) {
+		List<DAGTuple> result = new ArrayList<DAGTuple>();
+		Collection<LexicalAction> actions = this.lexicon.get(word.word());
+		if (actions == null || actions.isEmpty()) {
+			logger.error("Word not in Lexicon: " + word);
+			return result;
+		}
+
+		WordLevelContextDAG dag = (WordLevelContextDAG) getState();
+		DAGTuple current = dag.getCurrentTuple();
+		Set<GroundableEdge> before = new HashSet<GroundableEdge>(dag.getOutEdges(current));
+
+		dag.wordStack().clear();
+		dag.wordStack().push(word);
+		applyAllPermutations(goal);
+		dag.wordStack().clear();
+		dag.setCurrentTuple(current);
+
+		for (GroundableEdge edge : dag.getOutEdges(current)) {
+			if (before.contains(edge))
+				continue;
+			DAGTuple dest = dag.getDest(edge);
+			if (edge.word() == null) {
+				// a completion edge up to a TRP in the middle of the word's actions: the word edge goes on from it
+				for (GroundableEdge wordEdge : dag.getOutEdges(dest))
+					result.add(dag.getDest(wordEdge));
+			} else
+				result.add(dest);
+		}
+		// relative to the context, as for the tuples generateWord goes to
+		for (DAGTuple tuple : result)
+			tuple.getSemantics(context);
+		logger.debug("Extended " + current + " with " + word + " in " + result.size() + " ways");
+		return result;
+	}
+
+
+	/**
+	 * Extends the current tuple with word by re-executing the actions of an earlier generation of it (see
+	 * {@link GenerationCache}), rather than searching for them. The actions are looked up by name, computational ones
+	 * in the grammar, and the lexical one, the last, among the lexical actions of word: the first of these that applies
+	 * and subsumes goal is taken, as in {@link #generateWord(UtteredWord, Formula)}. Each is executed and instantiated
+	 * afresh, as when parsing. As in {@link #generateWord(UtteredWord, Formula)}, the pointer is left at the end of the
+	 * new word edge.
+	 * 
+	 * @param word
+	 * @param edges
+	 *            the names of the actions of each edge to add: the last is the word edge, any before it completion
+	 *            edges leading up to it
+	 * @param goal
+	 * @return the state, or null if the actions don't apply at the current tuple, in which case it is unchanged
+	 */
+	public synchronized DAG<DAGTuple, GroundableEdge> replayWord(UtteredWord word, List<List<String>> edges,
+			Formula goal) {
+		List<Tree> trees = new ArrayList<Tree>();
+		List<List<Action>> edgeActions = new ArrayList<List<Action>>();
+		Tree t = getState().getCurrentTuple().getTree();
+		for (int i = 0; i < edges.size(); i++) {
+			List<String> names = edges.get(i);
+			List<Action> actions = new ArrayList<Action>();
+			for (int j = 0; j < names.size(); j++) {
+				if (i == edges.size() - 1 && j == names.size() - 1)
+					t = replayLexicalAction(word, t, actions, goal);
+				else
+					t = replayComputationalAction(names.get(j), t, actions);
+				if (t == null) {
+					logger.debug("Could not replay " + names + " for " + word);
+					return null;
+				}
+			}
+			trees.add(t);
+			edgeActions.add(actions);
+		}
+
+		WordLevelContextDAG dag = (WordLevelContextDAG) getState();
+		for (int i = 0; i < edges.size(); i++) {
+			ArrayList<Action> actions = new ArrayList<Action>(edgeActions.get(i));
+			GroundableEdge edge;
+			if (i < edges.size() - 1) {
+				edge = dag.getNewCompletionEdge(actions);
+				edge.setRepairable(false);
+			} else {
+				edge = dag.getNewEdge(actions, word);
+				Action la = actions.get(actions.size() - 1);
+				if (la instanceof LexicalAction
+						&& non_repairing_action_types.contains(((LexicalAction) la).getLexicalActionType()))
+					edge.setRepairable(false);
+			}
+			dag.addChild(dag.getNewTuple(trees.get(i)), edge);
+			edge.traverse(dag);
+		}
+
+		if (word.word().equals(RELEASE_TURN))
+			this.context.openFloor();
+		else
+			this.context.setWhoHasFloor(word.speaker());
+
+		dag.thisIsFirstTupleAfterLastWord();
+		dag.setRepairProcessing(false);
+		logger.info("Replayed " + word);
+		return dag;
+	}
+
+	/**
+	 * Executes the computational action called name on t, adding an instantiation of it to actions
+	 *
+	 * @return the resulting tree, or null if there is no such action in the grammar, or it doesn't apply
+	 */
+	private Tree replayComputationalAction(String name, Tree t, List<Action> actions) {
+		ComputationalAction ca = nonoptionalGrammar.containsKey(name) ? nonoptionalGrammar.get(name)
+				: optionalGrammar.get(name);
+		if (ca == null)
+			return null;
+		Tree res = ca.exec(t.clone(), context);
+		if (res != null)
+			actions.add(ca.instantiate());
+		return res;
+	}
+
+	/**
+	 * Executes the first lexical action of word that applies to t with a result subsuming goal, adding an
+	 * instantiation of it to actions
+	 *
+	 * @return the resulting tree, or null if none does
+	 */
+	private Tree replayLexicalAction(UtteredWord word, Tree t, List<Action> actions, Formula goal) {
+		Collection<LexicalAction> las = lexicon.get(word.word());
+		if (las == null)
+			return null;
+		for (LexicalAction la : las) {
+			Tree res = la.exec(t.clone(), context);
+			if (res == null || (goal != null && !res.getMaximalSemantics(context).removeHead().subsumes(goal)))
+				continue;
+			actions.add(la.instantiate());
+			return res;
+		}
+		return null;
+	}
+
 	/**
 	 * @param w , speaker
 	 * @return the state which results from extending the current state with all
@@ -891,17 +1015,16 @@ public class InteractiveContextParser extends DAGParser<DAGTuple, GroundableEdge
 	}
 
 	/**
-	 * used in checking if a word is parsable without changing the state. (used in
-	 * MDP exploration)
+	 * The left adjustment closure of t: t adjusted with the non-optional grammar, then everything reachable from there
+	 * by optional computational actions, each followed by the non-optional grammar. These are the trees that lexical
+	 * actions requiring left adjustment are tried on.
 	 * 
-	 * @param la
-	 * @return true if lexical action is applicable to the current (right-most)
-	 *         tuple modulo left adjustment
+	 * @param t
+	 *            (not modified)
+	 * @return the trees in the closure, each paired with the actions that lead to it from t, t itself first
 	 */
-	private boolean leftAdjustAndApply(LexicalAction la) {
-
-		Pair<List<Action>, Tree> initPair = new Pair<List<Action>, Tree>(new ArrayList<Action>(),
-				getState().getCurrentTuple().tree.clone());
+	protected List<Pair<List<Action>, Tree>> leftAdjustments(Tree t) {
+		Pair<List<Action>, Tree> initPair = new Pair<List<Action>, Tree>(new ArrayList<Action>(), t.clone());
 
 		initPair = adjustWithNonOptionalGrammar(initPair);
 
@@ -922,10 +1045,11 @@ public class InteractiveContextParser extends DAGParser<DAGTuple, GroundableEdge
 					continue;
 
 				tried.get(ca).add(cur.second);
+				logger.debug("Applying ca: " + ca);
+				logger.debug("to: " + cur.second);
+
 				Tree res = ca.exec(cur.second.clone(), context);
-				logger.trace("Applying ca: " + ca);
-				logger.trace("to: " + cur.second);
-				logger.trace("result: " + res);
+				logger.debug("result: " + res);
 				if (res != null) {
 					List<Action> newActions = new ArrayList<Action>(cur.first);
 					newActions.add(ca.instantiate());
@@ -936,6 +1060,34 @@ public class InteractiveContextParser extends DAGParser<DAGTuple, GroundableEdge
 			}
 
 		}
+		return global;
+	}
+
+	/**
+	 * @return the nodes that lexical actions can be executed at from the current tuple: the pointed node of its tree,
+	 *         for actions without left adjustment, and the pointed nodes of its {@link #leftAdjustments(Tree)}.
+	 *         Doesn't change the parse state.
+	 */
+	public synchronized List<Node> getLexicalActionSites() {
+		Tree current = getState().getCurrentTuple().getTree();
+		List<Node> result = new ArrayList<Node>();
+		result.add(current.getPointedNode());
+		for (Pair<List<Action>, Tree> pair : leftAdjustments(current))
+			result.add(pair.second.getPointedNode());
+		return result;
+	}
+
+	/**
+	 * used in checking if a word is parsable without changing the state. (used in
+	 * MDP exploration)
+	 * 
+	 * @param la
+	 * @return true if lexical action is applicable to the current (right-most)
+	 *         tuple modulo left adjustment
+	 */
+	private boolean leftAdjustAndApply(LexicalAction la) {
+
+		List<Pair<List<Action>, Tree>> global = leftAdjustments(getState().getCurrentTuple().getTree());
 
 		for (Pair<List<Action>, Tree> pair : global) {
 
@@ -5,17 +5,30 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 
 import org.apache.log4j.Logger;
 
+import edu.stanford.nlp.util.Pair;
+
+import qmul.ds.action.LexicalTriggerIndex;
+import qmul.ds.dag.DAGTuple;
+import qmul.ds.formula.TTRFormula;
 import qmul.ds.formula.TTRRecordType;
 import qmul.ds.formula.Variable;
 import qmul.ds.learn.Feature;
+import qmul.ds.learn.GenerationModelFile;
 import qmul.ds.tree.Node;
 import qmul.ds.tree.Tree;
 import qmul.ds.tree.label.Requirement;
@@ -34,11 +47,52 @@ public class InteractiveProbabilisticGenerator extends BestFirstGenerator {
 
     final static String grammarPath = "resource/2022-learner2013-output/".replaceAll("/", Matcher.quoteReplacement(File.separator));
     static String modelFileName = "genLearnedModel.csv";
+    static String binaryModelFileName = "genLearnedModel.bin";
     static String wordProbFileName = "wordProbs.tsv";
+    /**
+     * word -> feature -> log prob. Only populated when the model is loaded from csv; see {@link #weights}.
+     */
     protected TreeMap<String, TreeMap<Feature, Double>> model;
     protected HashMap<String, Double> wordProbs;
     protected TreeSet<Feature> goalFeatures;
 
+    /**
+     * The model as a dense matrix, built by {@link #buildDenseModel()}: weights[i][j] is the log prob of feature
+     * features[j] given word vocabulary[i]. Features are in the order of goalFeatures, words in the order of model.
+     */
+    protected String[] vocabulary;
+    protected Feature[] features;
+    protected TreeMap<Feature, Integer> featureIndex;
+    protected double[][] weights;
+
+    /**
+     * tuple -> goal features mapped at tuple, for incrementsGoal. See {@link #getIncrementFeatures(DAGTuple)}
+     */
+    protected HashMap<DAGTuple, List<TTRRecordType>> increments = new HashMap<>();
+    private TTRFormula incrementsGoal = null;
+    /**
+     * semantic goal feature -> the index of its class of variants, and the semantic goal features in order. See
+     * {@link #variantsOf(List)}
+     */
+    private IdentityHashMap<TTRRecordType, Integer> variantClass = null;
+    private List<TTRRecordType> semanticFeatures = null;
+
+    /**
+     * Whether to leave out of the beam words none of whose lexical actions can fire at the current tuple, see
+     * {@link #getApplicableWords(DAGTuple)}
+     */
+    protected boolean filterByTriggers = true;
+    protected LexicalTriggerIndex triggerIndex = null;
+    /**
+     * tuple -> applicable[w] is false if vocabulary[w] can't be generated at tuple
+     */
+    protected HashMap<DAGTuple, boolean[]> applicableWords = new HashMap<>();
+
+    // scratch space for populateBeam, reused across calls
+    private double[] scores;
+    private boolean[] applicable;
+    private int[] heap;
+
     final boolean useDSTypes = true; //GeneratorLearner.useDSTypes; // todo make it use the one in the learner
 
     protected static org.apache.log4j.Logger logger = Logger.getLogger(InteractiveProbabilisticGenerator.class);
@@ -67,27 +121,35 @@ public class InteractiveProbabilisticGenerator extends BestFirstGenerator {
      * @return state
      */
     public List<TTRRecordType> mapFeatures(TTRRecordType rInc) {
+        List<TTRRecordType> onlySemanticsFeatures = new ArrayList<>();
+        for (Feature f : goalFeatures) {
+            if (f.rt != null)
+                onlySemanticsFeatures.add(f.rt);
+        }
+        return mapFeatures(rInc, onlySemanticsFeatures);
+    }
+
+
+    /**
+     * As {@link #mapFeatures(TTRRecordType)}, only trying the given candidate features
+     *
+     * @param rInc
+     * @param candidates
+     * @return the candidates mapped, in order
+     */
+    public List<TTRRecordType> mapFeatures(TTRRecordType rInc, List<TTRRecordType> candidates) {
         List<TTRRecordType> mappedFeatures = new ArrayList<>();
         HashMap<Variable, Variable> map = new HashMap<Variable, Variable>();
         logger.trace(rInc);
-        ArrayList<TTRRecordType> onlySemanticsFeatures = new ArrayList<>();
-//        for (Feature feature : goal_features) {
-//            if (feature.rt != null)
-//                onlySemanticsFeatures.add(feature.rt);
-//        }
-        for (Feature f : goalFeatures) {
-
-            if (f.rt != null) {
-                TTRRecordType feature = f.rt;
-                feature.resetMetas();
-                logger.trace(feature + " -> "); // what does this mean??#
-                if (feature.subsumesMapped(rInc, map)) { // or is it the other way?
-                    logger.trace(feature + " added to map.");
-                    mappedFeatures.add(feature);
-                }
-                feature.resetMetas();  // AA: todo Why resetting metas twice? (6 lines before!))
-                logger.trace("map is: " + map);  // AA: The map is not being updated? [apparantly it is :/]
+        for (TTRRecordType feature : candidates) {
+            feature.resetMetas();
+            logger.trace(feature + " -> "); // what does this mean??#
+            if (feature.subsumesMapped(rInc, map)) { // or is it the other way?
+                logger.trace(feature + " added to map.");
+                mappedFeatures.add(feature);
             }
+            feature.resetMetas();  // AA: todo Why resetting metas twice? (6 lines before!))
+            logger.trace("map is: " + map);  // AA: The map is not being updated? [apparantly it is :/]
         }
         return mappedFeatures;
     }
@@ -135,76 +197,342 @@ public class InteractiveProbabilisticGenerator extends BestFirstGenerator {
 
 
     public List<String> chooseTopWords(HashMap<String, Double> allProbs) {
-        // returns the top beamSize words based on their probabilities
-        //TODO make this treemap too, so always you pick top three elements and return them, it's sorted by prob value
-        // I want the probs to be printed too. This list isn't cool.
-        List<String> topWords = new ArrayList<>();
-        HashMap<String, Double> topWordProbs = new HashMap<>();
-        for (int i = 0; i < beam; i++) {
-            String maxWord = allProbs.keySet().toArray()[0].toString(); // Initialising to the first element.
-            Double maxProb = allProbs.get(maxWord);
-            for (String w : allProbs.keySet()) {
-                if (allProbs.get(w) > maxProb) {
-                    maxProb = allProbs.get(w);
-                    maxWord = w;
-                }
-            }
-            topWords.add((maxWord));
-            topWordProbs.put(maxWord, maxProb);
-            allProbs.remove(maxWord);
+        // returns the top beamSize words based on their probabilities, in a single pass with a bounded heap
+        PriorityQueue<String> top = new PriorityQueue<>(beam + 1, Comparator.comparing(allProbs::get));
+        for (String w : allProbs.keySet()) {
+            top.add(w);
+            if (top.size() > beam)
+                top.poll();
         }
+        LinkedList<String> topWords = new LinkedList<>();
+        while (!top.isEmpty())
+            topWords.addFirst(top.poll());
+
         logger.info(ANSI_YELLOW + "Top words are: " + ANSI_RESET);
         for (String w : topWords)
-            logger.info(ANSI_YELLOW + w + ": " + topWordProbs.get(w) + ANSI_RESET);
-        return topWords;
+            logger.info(ANSI_YELLOW + w + ": " + allProbs.get(w) + ANSI_RESET);
+        return new ArrayList<>(topWords);
+    }
+
+
+    /**
+     * @param scores
+     *            one score per word in vocabulary
+     * @return the beam best scoring words, best first. Selects with a bounded min-heap of word indices, so no boxing
+     *         and a single pass over scores. Ties go to the earlier word.
+     */
+    protected List<String> chooseTopWords(double[] scores) {
+        int[] top = topWordIndices(scores);
+        String[] topWords = new String[top.length];
+        for (int i = 0; i < top.length; i++)
+            topWords[i] = vocabulary[top[i]];
+
+        logger.info(ANSI_YELLOW + "Top words are: " + ANSI_RESET);
+        for (String w : topWords)
+            logger.info(ANSI_YELLOW + w + ANSI_RESET);
+        return Arrays.asList(topWords);
+    }
+
+    /**
+     * @param scores
+     * @return the indices of the beam best scoring words, best first, leaving out words that aren't applicable at
+     *         the current tuple
+     */
+    protected int[] topWordIndices(double[] scores) {
+        int k = Math.min(beam, scores.length);
+        if (heap == null || heap.length < k)
+            heap = new int[k];
+
+        int size = 0;
+        for (int w = 0; w < scores.length; w++) {
+            if (!applicable[w])
+                continue;
+            if (size < k) {
+                heap[size] = w;
+                siftUp(scores, size++);
+            } else if (worse(scores, heap[0], w)) {
+                heap[0] = w;
+                siftDown(scores, 0, size);
+            }
+        }
+
+        int[] top = new int[size];
+        while (size > 0) {
+            // the root is the worst of what's left
+            top[size - 1] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(scores, 0, size);
+        }
+        return top;
+    }
+
+    /**
+     * @return true if word a ranks below word b
+     */
+    private static boolean worse(double[] scores, int a, int b) {
+        return scores[a] < scores[b] || (scores[a] == scores[b] && a > b);
+    }
+
+    private void siftUp(double[] scores, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!worse(scores, heap[i], heap[parent]))
+                return;
+            int tmp = heap[i];
+            heap[i] = heap[parent];
+            heap[parent] = tmp;
+            i = parent;
+        }
+    }
+
+    private void siftDown(double[] scores, int i, int size) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                return;
+            if (child + 1 < size && worse(scores, heap[child + 1], heap[child]))
+                child++;
+            if (!worse(scores, heap[child], heap[i]))
+                return;
+            int tmp = heap[i];
+            heap[i] = heap[child];
+            heap[child] = tmp;
+            i = child;
+        }
+    }
+
+
+    /**
+     * @param tuple
+     * @return the goal features mapped by the remaining increment of the goal at tuple (goal minus the semantics of
+     *         tuple). Memoised per tuple for the current goal, so going back to a tuple on repair or backtracking costs
+     *         nothing. Since the increment only shrinks along a path, if the parent tuple's features are known only
+     *         those (and their variants, as the mapping can land on a differently labelled copy) are tried, rather
+     *         than all of the goal features.
+     */
+    protected List<TTRRecordType> getIncrementFeatures(DAGTuple tuple) {
+        if (goal != incrementsGoal) {
+            increments.clear();
+            incrementsGoal = goal;
+        }
+        List<TTRRecordType> result = increments.get(tuple);
+        if (result != null)
+            return result;
+
+        TTRRecordType rCur = (TTRRecordType) tuple.getSemantics().removeHeadIfManifest();
+        TTRRecordType rInc = ((TTRRecordType) this.goal).subtract(rCur, new HashMap<>());
+        DAGTuple parent = getState().getParent(tuple);
+        List<TTRRecordType> parentFeatures = (parent == null) ? null : increments.get(parent);
+        result = (parentFeatures == null) ? mapFeatures(rInc) : mapFeatures(rInc, variantsOf(parentFeatures));
+        increments.put(tuple, result);
+        return result;
+    }
+
+
+    /**
+     * @param mapped
+     *            semantic goal features
+     * @return the semantic goal features which are variants (equal up to relabelling) of one in mapped, in goal feature
+     *         order
+     */
+    protected List<TTRRecordType> variantsOf(List<TTRRecordType> mapped) {
+        if (variantClass == null) {
+            // group the semantic features into variant classes, once per model
+            variantClass = new IdentityHashMap<>();
+            semanticFeatures = new ArrayList<>();
+            for (Feature f : goalFeatures) {
+                if (f.rt == null)
+                    continue;
+                int c = semanticFeatures.size();
+                for (TTRRecordType other : semanticFeatures) {
+                    f.rt.resetMetas();
+                    other.resetMetas();
+                    if (f.rt.subsumes(other) && other.subsumes(f.rt)) {
+                        c = variantClass.get(other);
+                        break;
+                    }
+                }
+                f.rt.resetMetas();
+                variantClass.put(f.rt, c);
+                semanticFeatures.add(f.rt);
+            }
+        }
+        HashSet<Integer> classes = new HashSet<>();
+        for (TTRRecordType f : mapped)
+            classes.add(variantClass.get(f));
+
+        List<TTRRecordType> result = new ArrayList<>();
+        for (TTRRecordType f : semanticFeatures)
+            if (classes.contains(variantClass.get(f)))
+                result.add(f);
+        return result;
+    }
+
+
+    @Override
+    public void init() {
+        super.init();
+        increments.clear();
+        applicableWords.clear();
+    }
+
+
+    public void setFilterByTriggers(boolean filterByTriggers) {
+        this.filterByTriggers = filterByTriggers;
+        applicableWords.clear();
+    }
+
+
+    /**
+     * @param tuple
+     * @return applicable[w] is false if, according to the {@link LexicalTriggerIndex} of the lexicon, no lexical
+     *         action of vocabulary[w] can fire at any of the nodes it could be executed at from tuple (i.e. the pointed
+     *         nodes reachable by left adjustment). Memoised per tuple. All true if not filtering by triggers.
+     */
+    protected boolean[] getApplicableWords(DAGTuple tuple) {
+        boolean[] result = applicableWords.get(tuple);
+        if (result != null)
+            return result;
+
+        result = new boolean[vocabulary.length];
+        if (!filterByTriggers) {
+            Arrays.fill(result, true);
+            return result;
+        }
+        if (triggerIndex == null)
+            triggerIndex = new LexicalTriggerIndex(parser.getLexicon());
+
+        InteractiveContextParser icp = (InteractiveContextParser) parser;
+        Set<String> words = triggerIndex.applicableWords(icp.getLexicalActionSites());
+        int n = 0;
+        for (int w = 0; w < vocabulary.length; w++) {
+            String word = vocabulary[w];
+            // these are dealt with by the parser without executing their lexical actions
+            result[w] = words.contains(word) || !parser.getLexicon().containsKey(word)
+                    || icp.acks.contains(word) || icp.rightEdgeIndicators.contains(word);
+            if (result[w])
+                n++;
+        }
+        logger.debug(n + " of " + vocabulary.length + " words applicable at " + tuple);
+        applicableWords.put(tuple, result);
+        return result;
     }
 
 
     @Override
     public List<String> populateBeam() {
+        scoreWords();
+        // pick top beamSize words and return them as candidates.
+        return chooseTopWords(scores);
+    }
 
-        TTRRecordType rCur = (TTRRecordType)this.getParser().getContext().getDAG().getCurrentTuple().getSemantics().removeHeadIfManifest();  // How expensive is this operation?
-        TTRRecordType rInc = ((TTRRecordType)this.goal).subtract(rCur, new HashMap<>());
-        List<TTRRecordType> mappedFeatures = mapFeatures(rInc);
-//        List<WordLogProb> candidates = populateBeam(mappedFeatures);
+
+    @Override
+    public List<Pair<String, Double>> populateScoredBeam() {
+        scoreWords();
+        List<Pair<String, Double>> result = new ArrayList<>();
+        for (int w : topWordIndices(scores))
+            result.add(new Pair<>(vocabulary[w], scores[w]));
+        return result;
+    }
+
+
+    /**
+     * Scores every word in the vocabulary applicable at the current tuple (see {@link #getApplicableWords(DAGTuple)}),
+     * into scores
+     */
+    protected void scoreWords() {
+        applicable = getApplicableWords(getState().getCurrentTuple());
+        List<TTRRecordType> mappedFeatures = getIncrementFeatures(getState().getCurrentTuple());
 
 
         // looks into the current search space and picks the top beam candidates based on the probability of words given their semantics. Then returns the top beam candidates.
         // ATTENTION: This method assumes using log probabilities, therefore the probabilities are added instead of multiplied.
-        HashMap<String, Double> allProbs = new HashMap<>();
         Feature dsTypeFeature = getPointedNodeFeature(); // SHOULD this go below the "if useDSTypes" block?
         logger.info("pointed node: " + dsTypeFeature);
 
-        for (String w : model.keySet()) {
-            TreeMap<Feature, Double> row = model.get(w);
-            Double probSum = 0.0;
-            for (TTRRecordType r : mappedFeatures) {
-                probSum += row.get(new Feature(r));
-                logger.debug("word: " + w + ", feature: " + new Feature(r) + ", prob: " + row.get(new Feature(r)));
-            }
-            if (useDSTypes) { // I think I have to do this: see what type is required, get the prob of that for all the words and hope this helps for picking the right word.
-                Double dsProb = row.get(dsTypeFeature);
-                if (dsProb == null) {  // To handle unseen types, we assign an equal probability to all the features.
-                    logger.error("dsProb is null for word: " + w + ", dsTypeFeature: " + dsTypeFeature);
-                    // here!
-                    dsProb = Math.log(1.0/model.size());
-                }
-                probSum += dsProb; // TODO TEST
-                logger.debug("word: " + w + ", feature: " + dsTypeFeature + ", prob: " + row.get(dsTypeFeature));
-            }
+        // look up the feature columns once, rather than once per word
+        int[] columns = new int[mappedFeatures.size()];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = featureIndex.get(new Feature(mappedFeatures.get(i)));
+
+        Integer dsColumn = featureIndex.get(dsTypeFeature);
+        if (useDSTypes && dsColumn == null)  // To handle unseen types, we assign an equal probability to all the words.
+            logger.error("no feature for dsTypeFeature: " + dsTypeFeature);
+        double unseenDSProb = Math.log(1.0 / vocabulary.length);
+
+        for (int w = 0; w < vocabulary.length; w++) {
+            if (!applicable[w])
+                continue;
+            double[] row = weights[w];
+            double probSum = 0.0;
+            for (int c : columns)
+                probSum += row[c];
+            if (useDSTypes) // I think I have to do this: see what type is required, get the prob of that for all the words and hope this helps for picking the right word.
+                probSum += (dsColumn == null) ? unseenDSProb : row[dsColumn];
             // AA: commented out to remove the use of prior word probs.
-//            probSum += wordProbs.get(w); // Adds the probability of the word itself.
-            allProbs.put(w, probSum); // choose a better name over allProbs.
+//            probSum += wordProbs.get(vocabulary[w]); // Adds the probability of the word itself.
+            scores[w] = probSum;
+        }
+    }
+
+
+    /**
+     * Builds the dense matrix (see {@link #weights}) from model and goalFeatures.
+     */
+    protected void buildDenseModel() {
+        features = goalFeatures.toArray(new Feature[0]);
+        featureIndex = new TreeMap<>();
+        for (int j = 0; j < features.length; j++)
+            featureIndex.put(features[j], j);
+
+        vocabulary = model.keySet().toArray(new String[0]);
+        weights = new double[vocabulary.length][features.length];
+        for (int i = 0; i < vocabulary.length; i++) {
+            TreeMap<Feature, Double> row = model.get(vocabulary[i]);
+            for (int j = 0; j < features.length; j++) {
+                Double p = row.get(features[j]);
+                weights[i][j] = (p == null) ? Double.NEGATIVE_INFINITY : p;
+            }
         }
-        // pick top beamSize words from allProbs and return them as candidates.
-        for(String w: allProbs.keySet())
-            logger.debug("word: " + w + ", prob: " + allProbs.get(w));
-        List<String> candidates = chooseTopWords(allProbs);
-        return candidates;
+        scores = new double[vocabulary.length];
     }
 
 
+    /**
+     * Loads the model from the binary model file in grammarPath (see {@link GenerationModelFile}) if there is one and
+     * it is at least as new as the csv, from the csv otherwise, so that a retrained or edited csv isn't shadowed by a
+     * stale binary file.
+     *
+     * @param grammarPath
+     */
     public void loadModelFromFile(String grammarPath) throws IOException, ClassNotFoundException {
+        File binary = new File(grammarPath + binaryModelFileName);
+        File csv = new File(grammarPath + modelFileName);
+        if (binary.exists() && csv.exists() && binary.lastModified() < csv.lastModified())
+            logger.warn(binary + " is older than " + csv + ". Loading the model from the csv.");
+
+        if (binary.exists() && (!csv.exists() || binary.lastModified() >= csv.lastModified())) {
+            GenerationModelFile file = GenerationModelFile.read(binary);
+            this.model = null;
+            this.features = file.features;
+            this.vocabulary = file.words;
+            this.weights = file.weights;
+            this.goalFeatures = new TreeSet<>(Arrays.asList(features));
+            this.featureIndex = new TreeMap<>();
+            for (int j = 0; j < features.length; j++)
+                featureIndex.put(features[j], j);
+            this.scores = new double[vocabulary.length];
+            logger.info(ANSI_GREEN + "Model loaded successfully from " + binary + " with size: " + vocabulary.length + ANSI_RESET);
+        } else
+            loadModelFromCSV(grammarPath);
+
+        loadWordProbsFromFile();
+        logger.info(ANSI_GREEN + "Word probabilities loaded successfully from file with size: " + wordProbs.size() + ANSI_RESET);
+        modelChanged();
+    }
+
+    public void loadModelFromCSV(String grammarPath) throws IOException {
         this.model = new TreeMap<>();
         this.goalFeatures = new TreeSet<>();
         int lineNumber = 0;
@@ -255,10 +583,23 @@ public class InteractiveProbabilisticGenerator extends BestFirstGenerator {
                 lineNumber++;
             }
         }
+        stream.close();
         logger.info(ANSI_GREEN + "Model loaded successfully from file with size: " + model.size() + ANSI_RESET);
+        buildDenseModel();
+        modelChanged();
+    }
 
-        loadWordProbsFromFile();
-        logger.info(ANSI_GREEN + "Word probabilities loaded successfully from file with size: " + wordProbs.size() + ANSI_RESET);
+
+    /**
+     * Drops everything memoised from the previous model, including cached generations
+     */
+    protected void modelChanged() {
+        increments.clear();
+        incrementsGoal = null;
+        variantClass = null;
+        semanticFeatures = null;
+        applicableWords.clear();
+        clearGenerationCache();
     }
 
     public static void main(String[] args){  // main method only for testing purposes.
@@ -38,7 +38,7 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 		if (this.semantics != null)
 			return semantics;
 
-		semantics = tree.getMaximalSemantics();
+		semantics = getTree().getMaximalSemantics();
 		return semantics;
 	}
 	
@@ -52,7 +52,7 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 		if (this.semantics != null)
 			return semantics;
 
-		semantics = tree.getMaximalSemantics(c);
+		semantics = getTree().getMaximalSemantics(c);
 		return semantics;
 	}
 
@@ -88,7 +88,7 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 	 * @param tree
 	 */
 	public ParserTuple(ParserTuple tuple) {
-		this.tree = (tuple.tree == null) ? null : new Tree(tuple.tree);
+		this.tree = (tuple.getTree() == null) ? null : new Tree(tuple.getTree());
 		this.semantics = tuple.semantics == null ? null : tuple.semantics
 				.clone();
 	}
@@ -116,7 +116,7 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 	 *         non-lexical action
 	 */
 	public ParserTuple execAction(Action action, String word) {
-		Tree result = action.execTupleContext(tree.clone(), this);
+		Tree result = action.execTupleContext(getTree().clone(), this);
 		if (result == null) {
 			return null;
 		}
@@ -127,7 +127,7 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 			String word) {
 
 		Collection<Pair<? extends Action, Tree>> trees = ca.execExhaustively(
-				tree, this);
+				getTree(), this);
 
 		if (trees == null)
 			return null;
@@ -158,18 +158,18 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 	@Override
 	public int compareTo(ParserTuple other) {
 
-		if (this.tree.isComplete()) {
-			if (other.tree.isComplete()) {
+		if (getTree().isComplete()) {
+			if (other.getTree().isComplete()) {
 				return (other.hashCode() - this.hashCode());
 			} else {
 				return -1;
 			}
 		} else {
-			if (other.tree.isComplete()) {
+			if (other.getTree().isComplete()) {
 				return 1;
 			} else {
-				int r = this.tree.numRequirements()
-						- other.tree.numRequirements();
+				int r = getTree().numRequirements()
+						- other.getTree().numRequirements();
 				if (r == 0) {
 					return (other.hashCode() - this.hashCode());
 				}
@@ -216,7 +216,7 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 	}
 
 	public boolean isComplete() {
-		return this.tree.isComplete();
+		return getTree().isComplete();
 	}
 
 	/*
@@ -226,7 +226,7 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 	 */
 	@Override
 	public String toString() {
-		String s = (tree == null) ? "Tree:null" : tree.toString();
+		String s = (getTree() == null) ? "Tree:null" : getTree().toString();
 		//s += "\nSem:" + (getSemantics() == null ? "null" : getSemantics());
 		return s;
 	}
@@ -240,12 +240,12 @@ public class ParserTuple implements Comparable<ParserTuple>, Cloneable {
 			return headLess.subsumes(t.getSemantics().removeHead());
 //			return getSemantics().subsumes(t.getSemantics());
 		}
-		if (this.tree == null) {
-			if (t.tree == null)
+		if (getTree() == null) {
+			if (t.getTree() == null)
 				return true;
 			return false;
 		}
 
-		return tree.subsumes(t.tree);
+		return getTree().subsumes(t.getTree());
 	}
 }
@@ -0,0 +1,187 @@
+package qmul.ds.action;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import qmul.ds.action.atomic.Abort;
+import qmul.ds.action.atomic.Effect;
+import qmul.ds.action.atomic.IfThenElse;
+import qmul.ds.tree.Node;
+import qmul.ds.tree.label.Label;
+import qmul.ds.tree.label.LabelDisjunction;
+import qmul.ds.tree.label.Requirement;
+import qmul.ds.tree.label.TypeLabel;
+
+/**
+ * An index of the pointed node types & type requirements that the {@link LexicalAction}s of each word in a
+ * {@link Lexicon} can fire at, e.g. ?Ty(e) for a proper name, or one of ?Ty(t), Ty(t), ?Ty(e>t) for a preposition.
+ *
+ * These are read off the top-level IF of each action where its ELSE is abort. Only triggers that are plain (meta-free)
+ * type labels or type requirements, or disjunctions of them, are indexed: anything else is taken to be satisfiable,
+ * so {@link #applicable(String, Set)} never rules out a word that could fire, but may let through some that can't.
+ *
+ * A node is summarised by its signature, the set of type & type requirement labels on it (see
+ * {@link #signature(Node)}). The words applicable at a signature are memoised, as there are few distinct signatures.
+ *
+ * @author Arash
+ *
+ */
+public class LexicalTriggerIndex {
+
+	protected static Logger logger = Logger.getLogger(LexicalTriggerIndex.class);
+
+	/**
+	 * word -> one entry per lexical action of the word: the constraints on the pointed node, each the set of labels
+	 * (as strings) at least one of which the node must have
+	 */
+	private final HashMap<String, List<List<Set<String>>>> constraints = new HashMap<String, List<List<Set<String>>>>();
+
+	private final HashMap<Set<String>, Set<String>> applicableWords = new HashMap<Set<String>, Set<String>>();
+
+	public LexicalTriggerIndex(Lexicon lexicon) {
+		int indexed = 0;
+		for (String word : lexicon.keySet()) {
+			List<List<Set<String>>> wordConstraints = new ArrayList<List<Set<String>>>();
+			for (LexicalAction la : lexicon.get(word)) {
+				List<Set<String>> c = constraints(la);
+				wordConstraints.add(c);
+				if (!c.isEmpty())
+					indexed++;
+			}
+			constraints.put(word, wordConstraints);
+		}
+		logger.debug("Indexed pointed node triggers of " + indexed + " lexical actions for " + lexicon.size()
+				+ " words");
+	}
+
+	/**
+	 * @param la
+	 * @return the constraints on the pointed node la puts in its top-level IF, empty if there are none we can index
+	 */
+	private static List<Set<String>> constraints(LexicalAction la) {
+		List<Set<String>> result = new ArrayList<Set<String>>();
+		Effect[] effects = la.getEffects();
+		if (effects == null || effects.length == 0 || !(effects[0] instanceof IfThenElse))
+			return result;
+
+		IfThenElse ite = (IfThenElse) effects[0];
+		Effect[] elseClause = ite.getELSEClause();
+		if (elseClause.length != 1 || !(elseClause[0] instanceof Abort))
+			return result;
+
+		for (Label trigger : ite.getTriggers()) {
+			Set<String> c = constraint(trigger);
+			if (c != null)
+				result.add(c);
+		}
+		return result;
+	}
+
+	/**
+	 * @param trigger
+	 * @return the labels one of which the pointed node must have for trigger to hold, or null if we can't tell
+	 */
+	private static Set<String> constraint(Label trigger) {
+		if (isTypeLabel(trigger) && trigger.getMetas().isEmpty()) {
+			Set<String> result = new HashSet<String>();
+			result.add(trigger.toString());
+			return result;
+		}
+		if (trigger instanceof LabelDisjunction) {
+			Set<String> result = new HashSet<String>();
+			for (Label l : ((LabelDisjunction) trigger).getLabels()) {
+				Set<String> c = constraint(l);
+				if (c == null)
+					return null;
+				result.addAll(c);
+			}
+			return result;
+		}
+		return null;
+	}
+
+	private static boolean isTypeLabel(Label l) {
+		return l instanceof TypeLabel || (l instanceof Requirement && ((Requirement) l).getLabel() instanceof TypeLabel);
+	}
+
+	/**
+	 * @param node
+	 * @return the signature of node: its type & type requirement labels, as strings
+	 */
+	public static Set<String> signature(Node node) {
+		Set<String> result = new TreeSet<String>();
+		for (Label l : node)
+			if (isTypeLabel(l))
+				result.add(l.toString());
+		return result;
+	}
+
+	/**
+	 * @param word
+	 * @param signature
+	 *            see {@link #signature(Node)}
+	 * @return false if no lexical action of word can fire at a pointed node with this signature. Words not in the
+	 *         lexicon are taken to be applicable.
+	 */
+	public boolean applicable(String word, Set<String> signature) {
+		List<List<Set<String>>> wordConstraints = constraints.get(word);
+		if (wordConstraints == null)
+			return true;
+
+		actions: for (List<Set<String>> actionConstraints : wordConstraints) {
+			for (Set<String> c : actionConstraints) {
+				boolean satisfied = false;
+				for (String label : c) {
+					if (signature.contains(label)) {
+						satisfied = true;
+						break;
+					}
+				}
+				if (!satisfied)
+					continue actions;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param signature
+	 * @return the words of the lexicon that are {@link #applicable(String, Set)} at signature. Memoised, so must not be
+	 *         modified.
+	 */
+	public synchronized Set<String> applicableWords(Set<String> signature) {
+		Set<String> result = applicableWords.get(signature);
+		if (result == null) {
+			result = new HashSet<String>();
+			for (String word : constraints.keySet())
+				if (applicable(word, signature))
+					result.add(word);
+			applicableWords.put(new TreeSet<String>(signature), result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param nodes
+	 * @return the words of the lexicon applicable at any of nodes
+	 */
+	public Set<String> applicableWords(Collection<Node> nodes) {
+		Set<String> result = new HashSet<String>();
+		Set<Set<String>> seen = new HashSet<Set<String>>();
+		for (Node node : nodes) {
+			Set<String> signature = signature(node);
+			if (seen.add(signature))
+				result.addAll(applicableWords(signature));
+		}
+		return result;
+	}
+
+}
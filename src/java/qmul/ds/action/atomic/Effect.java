@@ -68,4 +68,12 @@ public abstract class Effect implements Serializable {
 			return false;
 		return this.toString().equals(o.toString());
 	}
+
+	/**
+	 * @return a string which is the same for any two equal effects. Equality goes by string by default, so this is the
+	 *         string: subclasses whose {@link #equals(Object)} is looser must override it to match.
+	 */
+	public String getSignatureKey() {
+		return toString();
+	}
 }
@@ -118,4 +118,12 @@ public class FreshPut extends Effect {
 		return this.type.equals(other.type) && this.var.getMeta().getName().equals(other.var.getMeta().getName());
 	}
 
+	/**
+	 * @return the functor & metavariable name, as fresh puts are equal whatever the variable they have put
+	 */
+	@Override
+	public String getSignatureKey() {
+		return FUNCTOR + "(" + this.var.getMeta().getName() + ")";
+	}
+
 }
@@ -135,6 +135,14 @@ public class TTRFreshPut extends Effect {
 		return new TTRFreshPut(this.ttrF.instantiate());
 	}
 
+	/**
+	 * @return just the functor, as TTR fresh puts are equal if their record types are up to relabelling
+	 */
+	@Override
+	public String getSignatureKey() {
+		return FUNCTOR;
+	}
+
 	public boolean equals(Object o)
 	{
 		if (!(o instanceof TTRFreshPut))
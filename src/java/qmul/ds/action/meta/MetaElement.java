@@ -58,12 +58,32 @@ public class MetaElement<X> implements Serializable, Meta<X> {
 
 	protected static HashMap<String, MetaElement<?>> pool = new HashMap<String, MetaElement<?>>();
 
+	private static final ThreadLocal<HashMap<String, MetaElement<?>>> privatePool = new ThreadLocal<HashMap<String, MetaElement<?>>>();
+
+	/**
+	 * Gives the calling thread its own pool of metavariables, so that actions it loads from then on don't share their
+	 * metas with those of other threads. For running several parsers/hypothesisers in parallel: call at the start of
+	 * the worker thread, before its lexicon & grammar are loaded. Other threads keep using the shared pool.
+	 */
+	public static void usePrivatePool() {
+		privatePool.set(new HashMap<String, MetaElement<?>>());
+	}
+
+	/**
+	 * @return the pool of the calling thread: its private one if it has one, the shared one otherwise
+	 */
+	private static HashMap<String, MetaElement<?>> currentPool() {
+		HashMap<String, MetaElement<?>> result = privatePool.get();
+		return (result == null) ? pool : result;
+	}
+
 	/**
 	 * @param name
 	 * @return the existing metavariable of this name (with its value), a new one otherwise
 	 */
 	@SuppressWarnings("unchecked")
 	public static <Y> MetaElement<Y> get(String name, Class<Y> cls) {
+		HashMap<String, MetaElement<?>> pool = currentPool();
 		
 		String key = cls.toString() + name;
 		if (!pool.containsKey(key)) {
@@ -73,6 +93,7 @@ public class MetaElement<X> implements Serializable, Meta<X> {
 	}
 
 	public static <Y> MetaElement<Y> getBoundMeta(Class<Y> cls) {
+		HashMap<String, MetaElement<?>> pool = currentPool();
 
 		String key = cls.toString() + BOUND_META_NAME;
 		if (!pool.containsKey(key)) {
@@ -89,6 +110,7 @@ public class MetaElement<X> implements Serializable, Meta<X> {
 	 * @return
 	 */
 	public static Collection<MetaElement<?>> get(String name) {
+		HashMap<String, MetaElement<?>> pool = currentPool();
 		Collection<MetaElement<?>> result = new ArrayList<MetaElement<?>>();
 		for (String key : pool.keySet()) {
 			if (key.endsWith(name))
@@ -207,10 +229,12 @@ public class MetaElement<X> implements Serializable, Meta<X> {
 	}
 	
 	public static void resetPool() {
+		HashMap<String, MetaElement<?>> pool = currentPool();
 		pool.clear();
 	}
 
 	public static void removeFromPool(String metaName) {
+		HashMap<String, MetaElement<?>> pool = currentPool();
 		Set<String> keysToRemove = new TreeSet<String>();
 		for (String key : pool.keySet()) {
 			if (key.endsWith(metaName))
@@ -222,6 +246,7 @@ public class MetaElement<X> implements Serializable, Meta<X> {
 	}
 
 	public static void resetBoundMetas() {
+		HashMap<String, MetaElement<?>> pool = currentPool();
 
 		for (String key : pool.keySet()) {
 			if (key.endsWith(BOUND_META_NAME))
@@ -0,0 +1,169 @@
+package qmul.ds.dag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import qmul.ds.tree.Tree;
+
+/**
+ * An append-only, file backed store for the {@link Tree}s of {@link DAGTuple}s that have fallen beyond the context
+ * horizon of a {@link DAG} (see {@link DAG#spillContextBeyondHorizon()}). Each tree is written once as a length
+ * prefixed, serialised record. Records are paged back in on demand by memory mapping just the region they occupy, so
+ * only the graph skeleton (tuple ids, edges, words, grounding info) needs to stay on the heap for very long
+ * dialogues.
+ *
+ * The backing file is a temporary file, deleted on {@link #close()} or on exit.
+ *
+ * @author Arash
+ *
+ */
+public class ContextSpillStore {
+
+	protected static Logger logger = Logger.getLogger(ContextSpillStore.class);
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private long end = 0L;
+	private int records = 0;
+
+	/**
+	 * Tuples whose trees have been paged back in from this store since they were last spilled, for
+	 * {@link DAG#spillContextBeyondHorizon()} to release again once they are beyond the horizon
+	 */
+	private final Set<DAGTuple> pagedIn = Collections.newSetFromMap(new IdentityHashMap<DAGTuple, Boolean>());
+
+	public ContextSpillStore() throws IOException {
+		this(File.createTempFile("dylan-context", ".spill"));
+	}
+
+	public ContextSpillStore(File file) throws IOException {
+		this.file = file;
+		this.file.deleteOnExit();
+		this.raf = new RandomAccessFile(file, "rw");
+		this.raf.setLength(0);
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * Appends t to the store
+	 *
+	 * @param t
+	 * @return the offset of the record, to be passed to {@link #load(long)}
+	 * @throws UncheckedIOException
+	 *             if the tree can't be written
+	 */
+	public synchronized long spill(Tree t) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(t);
+			out.close();
+
+			ByteBuffer record = ByteBuffer.allocate(4 + bytes.size());
+			record.putInt(bytes.size());
+			record.put(bytes.toByteArray());
+			record.flip();
+
+			long offset = end;
+			while (record.hasRemaining())
+				end += channel.write(record, end);
+
+			records++;
+			return offset;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not spill tree to " + file, e);
+		}
+	}
+
+	/**
+	 * Pages back in the tree stored at offset
+	 *
+	 * @param offset
+	 * @return the tree
+	 * @throws UncheckedIOException
+	 *             if the tree can't be read
+	 */
+	public synchronized Tree load(long offset) {
+		if (offset < 0 || offset >= end)
+			throw new IllegalArgumentException("No spilled record at offset " + offset);
+
+		try {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4);
+			int length = header.getInt();
+			MappedByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4, length);
+			byte[] bytes = new byte[length];
+			body.get(bytes);
+
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			Tree t = (Tree) in.readObject();
+			in.close();
+			return t;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not page tree back in from " + file, e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Could not page tree back in from " + file, e);
+		}
+	}
+
+	synchronized void pagedIn(DAGTuple tuple) {
+		pagedIn.add(tuple);
+	}
+
+	synchronized void released(DAGTuple tuple) {
+		pagedIn.remove(tuple);
+	}
+
+	/**
+	 * @return the tuples whose trees have been paged back in and not released since
+	 */
+	synchronized List<DAGTuple> getPagedIn() {
+		return new ArrayList<DAGTuple>(pagedIn);
+	}
+
+	public int size() {
+		return records;
+	}
+
+	public long sizeInBytes() {
+		return end;
+	}
+
+	public synchronized void clear() {
+		try {
+			channel.truncate(0);
+		} catch (IOException e) {
+			logger.error("Could not clear " + file + ": " + e.getMessage());
+		}
+		end = 0L;
+		records = 0;
+		pagedIn.clear();
+	}
+
+	public synchronized void close() {
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			logger.error("Could not close " + file + ": " + e.getMessage());
+		}
+		file.delete();
+	}
+
+}
@@ -2,9 +2,13 @@ package qmul.ds.dag;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.Stack;
@@ -20,8 +24,13 @@ import qmul.ds.ParserTuple;
 import qmul.ds.action.Action;
 import qmul.ds.formula.TTRFormula;
 import qmul.ds.formula.TTRRecordType;
+import qmul.ds.tree.Node;
+import qmul.ds.tree.NodeAddress;
 import qmul.ds.tree.Tree;
+import qmul.ds.tree.label.Label;
+import qmul.ds.tree.label.TypeLabel;
 import qmul.ds.ttrlattice.AustinianProp;
+import qmul.ds.type.DSType;
 
 /**
  * A generic DS (parse) Directed Acyclic Graph. Edges correspond minimally to
@@ -65,6 +74,68 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 	protected List<Long> idPoolEdges = new ArrayList<Long>();
 
 	protected List<E> actionReplay = new ArrayList<E>();
+
+	/**
+	 * Trees of tuples further than spillHorizon tuples back from the current tuple are spilled to spillStore. See
+	 * {@link #spillContextBeyondHorizon()}. Negative horizon means no spilling.
+	 */
+	protected transient ContextSpillStore spillStore = null;
+	protected int spillHorizon = -1;
+
+	/**
+	 * Per tuple, the asserted tuples & turn boundaries on the path back to root. Filled lazily by
+	 * {@link #getPathContent(DAGTuple)}, for version {@link #pathContentsVersion} of the context's participants, and
+	 * dropped for tuples beyond the context horizon.
+	 */
+	protected transient Map<T, PathContent> pathContents = new HashMap<T, PathContent>();
+	protected int pathContentsVersion = -1;
+
+	/**
+	 * The last conjunction of asserted content computed, per speaker or set of participants. See
+	 * {@link #conjoinAsserted(PathContent, Object)}
+	 */
+	private transient Map<Object, Conjunction> conjunctions = new HashMap<Object, Conjunction>();
+
+	private static class Conjunction {
+		/**
+		 * the last asserted tuple included
+		 */
+		final PathContent at;
+		final TTRFormula content;
+
+		Conjunction(PathContent at, TTRFormula content) {
+			this.at = at;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * The last set of Austinian props computed, per speaker, or null for all speakers. See
+	 * {@link #assertions(PathContent, String)}
+	 */
+	private transient Map<String, Assertions> assertionSets = new HashMap<String, Assertions>();
+
+	private static class Assertions {
+		/**
+		 * the last asserted tuple included
+		 */
+		final PathContent at;
+		final TreeSet<AustinianProp> props;
+
+		Assertions(PathContent at, TreeSet<AustinianProp> props) {
+			this.at = at;
+			this.props = props;
+		}
+	}
+
+	/**
+	 * tuple -> the context tuple searched by context modality labels from it. See {@link #getContextAntecedent(DAGTuple)}
+	 */
+	protected transient Map<T, T> contextAntecedents = new HashMap<T, T>();
+	/**
+	 * context tuple -> index of the addresses of its nodes by type. See {@link #getContextNodes(DAGTuple, DSType)}
+	 */
+	protected transient Map<T, Map<DSType, List<NodeAddress>>> contextNodesByType = new HashMap<T, Map<DSType, List<NodeAddress>>>();
 	//for order of traversal.
 	//this could also be by end point completeness.
 	//protected Comparator<E> edgeComparator=new EdgeComparatorByLocality();
@@ -246,6 +317,11 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 		// lastN.add(cur.getTree());
 		thisIsFirstTupleAfterLastWord();
 		actionReplay.clear();
+		pathContents.clear();
+		conjunctions.clear();
+		assertionSets.clear();
+		contextAntecedents.clear();
+		contextNodesByType.clear();
 		//acceptance_pointers.clear();
 	}
 
@@ -297,6 +373,14 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 		return result;
 	}
 
+	@Override
+	public boolean removeVertex(T vertex) {
+		pathContents.remove(vertex);
+		contextAntecedents.remove(vertex);
+		contextNodesByType.remove(vertex);
+		return super.removeVertex(vertex);
+	}
+
 	public boolean removeChild(T child) {
 		if (!containsVertex(child))
 			return false;
@@ -388,6 +472,13 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 		return lastN.contains(res);
 	}
 
+	/**
+	 * @return how many tuples, counting back from the current one, {@link #loopDetected(Tree)} checks against
+	 */
+	public int getLoopDetectionWindow() {
+		return lastNCapacity;
+	}
+
 	public boolean repairProcessingEnabled() {
 		return repair_processing;
 
@@ -421,6 +512,71 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 	}
 
 	// ------------------End of LastN Methods
+
+	public void setSpillStore(ContextSpillStore store, int horizon) {
+		this.spillStore = store;
+		this.spillHorizon = horizon;
+	}
+
+	private boolean spill(DAGTuple tuple) {
+		pathContents.remove(tuple);
+		contextNodesByType.remove(tuple);
+		return tuple.spill(spillStore);
+	}
+
+	/**
+	 * Pages the trees of all spilled tuples back in for good, so that the spill store can be closed
+	 */
+	public void unspillAll() {
+		for (T tuple : getVertices())
+			tuple.unspill();
+	}
+
+	public ContextSpillStore getSpillStore() {
+		return spillStore;
+	}
+
+	public int getSpillHorizon() {
+		return spillHorizon;
+	}
+
+	/**
+	 * Releases the trees of all tuples more than spillHorizon steps back from the current tuple, on the path back to
+	 * root, to the spill store; the current tuple itself is never spilled. Walks stop at the first tuple that has
+	 * already been spilled, since everything above it was spilled on an earlier call. Trees paged back in since (by
+	 * {@link DAGTuple#getTree()}, e.g. on walks back through the history, or after a {@link #rollBack(int)}) are
+	 * released again unless they are within the horizon now. The graph structure itself stays in memory, so
+	 * {@link #getParent(DAGTuple)}, {@link #getParentEdge(DAGTuple)} etc. work as before. The path contents & context
+	 * node indices of spilled tuples are dropped too.
+	 * 
+	 * @return the number of tuples spilled
+	 */
+	public int spillContextBeyondHorizon() {
+		if (spillStore == null || spillHorizon < 0)
+			return 0;
+
+		Set<DAGTuple> resident = Collections.newSetFromMap(new IdentityHashMap<DAGTuple, Boolean>());
+		T tuple = cur;
+		for (int i = 0; i <= spillHorizon && tuple != null; i++) {
+			resident.add(tuple);
+			tuple = getParent(tuple);
+		}
+
+		int spilled = 0;
+		while (tuple != null && !tuple.isSpilled()) {
+			if (spill(tuple))
+				spilled++;
+			tuple = getParent(tuple);
+		}
+		for (DAGTuple pagedIn : spillStore.getPagedIn()) {
+			if (!resident.contains(pagedIn) && spill(pagedIn))
+				spilled++;
+		}
+		if (spilled > 0)
+			logger.debug("spilled " + spilled + " tuples beyond horizon " + spillHorizon);
+
+		return spilled;
+	}
 	
 	
 
@@ -1024,6 +1180,186 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 
 	
 	
+	/**
+	 * The asserted tuples & turn boundaries on the path from root to tuple (see {@link PathContent}). Computed from the
+	 * closest ancestor whose path content is already known, so that asking for it after every word costs constant time
+	 * rather than a walk back to root. All path contents are dropped when the participants of the conversation change.
+	 * 
+	 * @param tuple
+	 * @return the path content of tuple, or null if there is no context (and so no participants)
+	 */
+	public PathContent getPathContent(T tuple) {
+		if (context == null || context.getParticipants().isEmpty())
+			return null;
+
+		if (pathContentsVersion != context.getParticipantsVersion()) {
+			logger.debug("participants changed. Recomputing path contents.");
+			pathContents.clear();
+			conjunctions.clear();
+			assertionSets.clear();
+			pathContentsVersion = context.getParticipantsVersion();
+		}
+
+		List<T> path = new ArrayList<T>();
+		T ancestor = tuple;
+		while (ancestor != null && !pathContents.containsKey(ancestor)) {
+			path.add(ancestor);
+			ancestor = getParent(ancestor);
+		}
+
+		PathContent parentContent = ancestor == null ? null : pathContents.get(ancestor);
+		for (int i = path.size() - 1; i >= 0; i--) {
+			T t = path.get(i);
+			T boundary = null;
+			E parentEdge = getParentEdge(t);
+			if (parentEdge != null) {
+				T parent = getSource(parentEdge);
+				E parentOfParent = getParentEdge(parent);
+				if (parentOfParent != null && parentOfParent.word != null && parentEdge.word != null
+						&& !parentOfParent.word.speaker().equals(parentEdge.word.speaker()))
+					boundary = parent;
+			}
+
+			// spilled tuples are beyond the horizon, so aren't kept
+			boolean spilled = t.isSpilled();
+			PathContent content = new PathContent(parentContent, t, t.getTree().getAsserters(), boundary);
+			if (!spilled)
+				pathContents.put(t, content);
+
+			parentContent = content;
+		}
+		return parentContent;
+	}
+
+	/**
+	 * The conjunction of the contents of the tuples on the path to at asserted by key, carried on from the last one
+	 * computed for key if that was at an ancestor of at, so that going forward one tuple costs at most one conjunction.
+	 * 
+	 * @param at
+	 * @param key
+	 *            a speaker, or a set of participants, for the content asserted by all of them
+	 * @return the conjunction, oldest first. Shared, so shouldn't be modified.
+	 */
+	private TTRFormula conjoinAsserted(PathContent at, Object key) {
+		Conjunction known = conjunctions.get(key);
+		List<PathContent> newer = new ArrayList<PathContent>();
+		PathContent a = at.lastAssertion;
+		while (a != null && (known == null || a != known.at)) {
+			newer.add(a);
+			a = a.previousAssertion;
+		}
+
+		TTRFormula result = a == null ? new TTRRecordType() : known.content;
+		for (int i = newer.size() - 1; i >= 0; i--) {
+			PathContent c = newer.get(i);
+			if (key instanceof String ? c.asserters.contains(key) : c.asserters.containsAll((Set<?>) key))
+				result = result.conjoin(c.tuple.getSemantics(context));
+		}
+		conjunctions.put(key, new Conjunction(at.lastAssertion, result));
+		return result;
+	}
+
+	/**
+	 * The Austinian props asserted on the path to at, carried on from the last set computed for speaker if that was at
+	 * an ancestor of at, as in {@link #conjoinAsserted(PathContent, Object)}. Unchanged when no tuple has been
+	 * asserted since.
+	 * 
+	 * @param at
+	 * @param speaker
+	 *            null for all speakers
+	 * @return the Austinian props asserted on the path to at, by speaker. Shared, so shouldn't be modified.
+	 */
+	private TreeSet<AustinianProp> assertions(PathContent at, String speaker) {
+		Assertions known = assertionSets.get(speaker);
+		if (known != null && known.at == at.lastAssertion)
+			return known.props;
+
+		List<PathContent> newer = new ArrayList<PathContent>();
+		PathContent a = at.lastAssertion;
+		while (a != null && (known == null || a != known.at)) {
+			newer.add(a);
+			a = a.previousAssertion;
+		}
+
+		// a copy, since the last set may have been handed out
+		TreeSet<AustinianProp> result = a == null ? new TreeSet<AustinianProp>() : new TreeSet<AustinianProp>(known.props);
+		for (PathContent c : newer)
+			if (speaker == null || c.asserters.contains(speaker))
+				result.add(new AustinianProp((TTRRecordType) c.tuple.getSemantics(context), c.tuple.id));
+
+		assertionSets.put(speaker, new Assertions(at.lastAssertion, result));
+		return result;
+	}
+
+	/**
+	 * The tuple whose tree context modality labels (e.g. in VP-ellipsis and anaphora) are checked against from tuple:
+	 * the first tuple on the path back to root which either has a complete tree, or whose parent edge starts a new
+	 * clause, in which case it is the parent. Memoised for every tuple on the way, since trees in the DAG don't change.
+	 * 
+	 * @param tuple
+	 * @return the antecedent tuple, or null if there is none
+	 */
+	public T getContextAntecedent(T tuple) {
+		List<T> visited = new ArrayList<T>();
+		T result = null;
+		T current = tuple;
+		while (current != null) {
+			if (contextAntecedents.containsKey(current)) {
+				result = contextAntecedents.get(current);
+				break;
+			}
+			visited.add(current);
+			E parentEdge = getParentEdge(current);
+			if (parentEdge != null && parentEdge.initiatesNewClause()) {
+				result = getSource(parentEdge);
+				break;
+			}
+			if (current.getTree().isComplete()) {
+				result = current;
+				break;
+			}
+			current = getParent(current);
+		}
+		for (T t : visited)
+			contextAntecedents.put(t, result);
+
+		return result;
+	}
+
+	/**
+	 * @param tuple
+	 * @param type
+	 * @return addresses of the nodes in the tree of tuple with type label type (all nodes if type is null), in tree
+	 *         order. The index is built once per tuple.
+	 */
+	public List<NodeAddress> getContextNodes(T tuple, DSType type) {
+		if (type == null)
+			return new ArrayList<NodeAddress>(tuple.getTree().keySet());
+
+		Map<DSType, List<NodeAddress>> byType = contextNodesByType.get(tuple);
+		if (byType == null) {
+			byType = new HashMap<DSType, List<NodeAddress>>();
+			for (Node n : tuple.getTree().values()) {
+				for (Label l : n) {
+					if (!(l instanceof TypeLabel))
+						continue;
+
+					DSType t = ((TypeLabel) l).getType();
+					if (!byType.containsKey(t))
+						byType.put(t, new ArrayList<NodeAddress>());
+
+					byType.get(t).add(n.getAddress());
+				}
+			}
+			contextNodesByType.put(tuple, byType);
+		}
+		return byType.containsKey(type) ? byType.get(type) : new ArrayList<NodeAddress>();
+	}
+
+	/**
+	 * @param participants
+	 * @return all Austinian props asserted on the path back to root, by anyone
+	 */
 	public TreeSet<AustinianProp> getAssertions(Set<String> participants)
 	{
 		if (participants == null||participants.isEmpty()) {
@@ -1037,7 +1373,9 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 			throw new IllegalArgumentException("Trying to get grounded content for participants that are not all part of the conversation: "+participants);
 		}
 			
-		
+		PathContent content = getPathContent(getCurrentTuple());
+		if (content != null)
+			return assertions(content, null);
 		
 		TreeSet<AustinianProp> result = new TreeSet<AustinianProp>();
 
@@ -1071,7 +1409,9 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 			throw new IllegalArgumentException("Trying to get grounded content for participants that are not all part of the conversation: "+participants);
 		}
 			
-		
+		PathContent content = getPathContent(getCurrentTuple());
+		if (content != null)
+			return conjoinAsserted(content, new HashSet<String>(participants));
 		
 		TTRFormula result = new TTRRecordType();
 		
@@ -1098,8 +1438,16 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 		return result;
 	}
 
+	/**
+	 * @param speaker
+	 * @return Austinian props asserted by speaker on the path back to root
+	 */
 	public TreeSet<AustinianProp> getAssertions(String speaker)
 	{
+		PathContent content = getPathContent(getCurrentTuple());
+		if (content != null)
+			return assertions(content, speaker);
+		
 		TreeSet<AustinianProp> asserted_tuples = new TreeSet<AustinianProp>();
 		
 		
@@ -1121,6 +1469,10 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 	}
 	
 	public TTRFormula getGroundedContent(String speaker) {
+		PathContent content = getPathContent(getCurrentTuple());
+		if (content != null)
+			return conjoinAsserted(content, speaker);
+		
 		TTRFormula result = new TTRRecordType();
 		Set<T> asserted_tuples = new HashSet<T>();
 		
@@ -1149,10 +1501,41 @@ public abstract class DAG<T extends DAGTuple, E extends DAGEdge> extends Directe
 
 	}
 	
+	/**
+	 * The conjunction of the turn boundaries from b back to root, nearest first, memoised on each boundary's path
+	 * content so that only boundaries new since the last call are conjoined.
+	 * 
+	 * @param b
+	 * @return the conjunction, or null if b is null
+	 */
+	private TTRFormula turnContent(PathContent b) {
+		List<PathContent> newer = new ArrayList<PathContent>();
+		while (b != null && b.turnContent == null) {
+			newer.add(b);
+			b = b.previousBoundary;
+		}
+
+		TTRFormula result = b == null ? null : b.turnContent;
+		for (int i = newer.size() - 1; i >= 0; i--) {
+			PathContent c = newer.get(i);
+			TTRFormula boundary = c.boundary.getSemantics(context);
+			result = result == null ? boundary : boundary.conjoin(result);
+			c.turnContent = result;
+		}
+		return result;
+	}
+
 	public TTRFormula conjoinAllTurnContent() {
 		
 		T tuple=getCurrentTuple();
-		TTRFormula result = tuple.getSemantics(context);	
+		TTRFormula result = tuple.getSemantics(context);
+		
+		PathContent content = getPathContent(tuple);
+		if (content != null) {
+			TTRFormula turns = turnContent(content.lastBoundary);
+			return turns == null ? result : result.conjoin(turns);
+		}
+		
 		E parentEdge=this.getParentEdge(tuple);
 		
 		while(parentEdge!=null)
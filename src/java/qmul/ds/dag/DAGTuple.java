@@ -25,6 +25,12 @@ public class DAGTuple extends ParserTuple {
 	protected Long id = 0L;
 	private long depth = 0;
 
+	/**
+	 * where the tree of this tuple has been spilled to, if it has been. See {@link #spill(ContextSpillStore)}
+	 */
+	private ContextSpillStore spillStore = null;
+	private long spillOffset = -1L;
+
 	/*
 	 * public static Transformer<DAGTuple, String> getVertexLabelTransformer() {
 	 * return new Transformer<DAGTuple, String>() { public String
@@ -63,6 +69,64 @@ public class DAGTuple extends ParserTuple {
 		super();
 	}
 
+	/**
+	 * Pages the tree of this tuple back in from the spill store if it has been spilled. It stays on the heap until
+	 * the next {@link DAG#spillContextBeyondHorizon()} releases it again, if it is still beyond the horizon then.
+	 */
+	public Tree getTree() {
+		if (tree == null && spillStore != null) {
+			logger.trace("paging in tree of tuple " + id);
+			tree = spillStore.load(spillOffset);
+			spillStore.pagedIn(this);
+		}
+		return tree;
+	}
+
+	public void setTree(Tree newtree) {
+		super.setTree(newtree);
+		if (spillStore != null)
+			spillStore.released(this);
+		this.spillStore = null;
+		this.spillOffset = -1L;
+	}
+
+	/**
+	 * Releases the tree (and cached semantics) of this tuple from the heap, writing the tree to store first if it
+	 * isn't already there. {@link #getTree()} transparently pages it back in.
+	 * 
+	 * @param store
+	 * @return true if the tree was released
+	 */
+	public boolean spill(ContextSpillStore store) {
+		if (tree == null)
+			return false;
+
+		if (spillStore != store) {
+			this.spillOffset = store.spill(tree);
+			this.spillStore = store;
+		} else
+			store.released(this);
+		this.tree = null;
+		this.semantics = null;
+		return true;
+	}
+
+	/**
+	 * Pages the tree of this tuple back in for good, e.g. before its spill store is closed
+	 */
+	public void unspill() {
+		if (spillStore == null)
+			return;
+		getTree();
+		spillStore.released(this);
+		this.spillStore = null;
+		this.spillOffset = -1L;
+	}
+
+	public boolean isSpilled() {
+		return tree == null && spillStore != null;
+	}
+
 	public boolean equals(Object o) {
 		if (this == o)
 			return true;
@@ -53,6 +53,10 @@ public class DAGTupleSet extends ArrayList<ParserTuple> {
 		add(start);
 	}
 
+	public long getId() {
+		return id;
+	}
+
 	public void add(Tree t) {
 		add(new ParserTuple(t));
 	}
@@ -0,0 +1,97 @@
+package qmul.ds.dag;
+
+import java.util.Set;
+
+import qmul.ds.formula.TTRFormula;
+
+/**
+ * A node of the content accumulated along the path from the root of a {@link DAG} down to (and including) a single
+ * tuple: the tuples on the path which were asserted by someone, and those at which the speaker changes (turn
+ * boundaries).
+ *
+ * Each is a persistent linked list: a tuple's {@link PathContent} points to the last asserted tuple & turn boundary on
+ * its path, and these to the ones before them, so tuples share everything above them with their parent, and extending
+ * the path costs constant time & memory (see {@link DAG#getPathContent(DAGTuple)}). Only tuples are held, not their
+ * semantics, which {@link DAG} conjoins when asked, apart from the conjunction of the turn boundaries, which is
+ * memoised on each boundary.
+ *
+ * @author Arash
+ *
+ */
+public class PathContent {
+
+	/**
+	 * The tuple this is the path content of
+	 */
+	final DAGTuple tuple;
+
+	/**
+	 * The asserters on the tree of {@link #tuple}
+	 */
+	final Set<String> asserters;
+
+	/**
+	 * The last tuple on the path, possibly this one, which was asserted by anyone, or null
+	 */
+	final PathContent lastAssertion;
+
+	/**
+	 * If this tuple is asserted, the last asserted tuple before it
+	 */
+	final PathContent previousAssertion;
+
+	/**
+	 * If the speaker changes at the parent of this tuple, the parent
+	 */
+	final DAGTuple boundary;
+
+	/**
+	 * The last path content on the path, possibly this one, with a turn boundary, or null
+	 */
+	final PathContent lastBoundary;
+
+	/**
+	 * If this has a turn boundary, the last path content with one before it
+	 */
+	final PathContent previousBoundary;
+
+	/**
+	 * If this has a turn boundary, the conjunction of the semantics of it and the boundaries before it, nearest first.
+	 * Filled by {@link DAG#conjoinAllTurnContent()}
+	 */
+	TTRFormula turnContent;
+
+	/**
+	 * Extends parent with tuple.
+	 *
+	 * @param parent
+	 *            the path content of the parent of tuple, null at the root
+	 * @param tuple
+	 * @param asserters
+	 *            the asserters of tuple's tree
+	 * @param boundary
+	 *            the parent of tuple if the speaker changes there, otherwise null
+	 */
+	PathContent(PathContent parent, DAGTuple tuple, Set<String> asserters, DAGTuple boundary) {
+		this.tuple = tuple;
+		this.asserters = asserters;
+		this.boundary = boundary;
+
+		PathContent parentAssertion = parent == null ? null : parent.lastAssertion;
+		this.previousAssertion = asserters.isEmpty() ? null : parentAssertion;
+		this.lastAssertion = asserters.isEmpty() ? parentAssertion : this;
+
+		PathContent parentBoundary = parent == null ? null : parent.lastBoundary;
+		this.previousBoundary = boundary == null ? null : parentBoundary;
+		this.lastBoundary = boundary == null ? parentBoundary : this;
+	}
+
+	public DAGTuple getTuple() {
+		return tuple;
+	}
+
+	public Set<String> getAsserters() {
+		return asserters;
+	}
+
+}
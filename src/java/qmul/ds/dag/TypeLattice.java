@@ -1,9 +1,14 @@
 package qmul.ds.dag;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -54,7 +59,35 @@ public class TypeLattice extends DelegateTree<TypeTuple, TypeLatticeIncrement> {
 //	List<TypeLatticeIncrement> lastInc = null;  // COMMENTED OUT BY AA: no usage.
 	List<TTRField> priorityFields = new ArrayList<>();  // ASSUMPTION!!
 
-	static List<TTRRecordType> priorityTemplates = new ArrayList<>();
+	/**
+	 * Memoised results of {@link #getIncrements(TTRLabel)}: tuple -> label -> the increments, and seenTypes as computing
+	 * them left it. Cleared whenever the lattice grows. Keyed by identity, so not serialised: it starts empty again.
+	 */
+	private transient Map<TypeTuple, Map<TTRLabel, Increments>> incrementCache = new IdentityHashMap<>();
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		incrementCache = new IdentityHashMap<>();
+	}
+
+	private static class Increments {
+		final Set<List<TypeLatticeIncrement>> increments;
+		final Set<TTRRecordType> seenTypes;
+
+		Increments(Set<List<TypeLatticeIncrement>> increments, Set<TTRRecordType> seenTypes) {
+			this.increments = copy(increments);
+			this.seenTypes = new HashSet<>(seenTypes);
+		}
+	}
+
+	// shared by all lattices, so set up once rather than by each constructor
+	static final List<TTRRecordType> priorityTemplates = new ArrayList<>();
+	static {
+		priorityTemplates.add(TTRRecordType
+				.parse("[e1:es|e2:es|x1:e|x2:e|p1==subj(e1,x1):t|p2==obj(e1,x2):t|p3==ind_obj(e1, e2):t]"));
+		priorityTemplates.add(TTRRecordType.parse("[e1:es|x1:e|x2:e|p1==subj(e1,x1):t|p2==obj(e1,x2):t]"));
+		priorityTemplates.add(TTRRecordType.parse("[e1:es|x1:e|p1==subj(e1,x1):t]"));
+	}
 
 
 	public TypeLattice() {
@@ -90,10 +123,6 @@ public class TypeLattice extends DelegateTree<TypeTuple, TypeLatticeIncrement> {
 
 	
 	public void initTemplates() {
-		priorityTemplates.add(TTRRecordType
-				.parse("[e1:es|e2:es|x1:e|x2:e|p1==subj(e1,x1):t|p2==obj(e1,x2):t|p3==ind_obj(e1, e2):t]"));
-		priorityTemplates.add(TTRRecordType.parse("[e1:es|x1:e|x2:e|p1==subj(e1,x1):t|p2==obj(e1,x2):t]"));
-		priorityTemplates.add(TTRRecordType.parse("[e1:es|x1:e|p1==subj(e1,x1):t]"));
 		initPriorityFields();
 	}
 
@@ -117,6 +146,14 @@ public class TypeLattice extends DelegateTree<TypeTuple, TypeLatticeIncrement> {
 		init(cur);
 	}
 
+	/**
+	 * Puts the lattice back at its root, as it was when constructed, so that it can be reused for another search
+	 * towards the same record type
+	 */
+	public void reset() {
+		init();
+	}
+
 	private void init(TypeTuple tt) {
 		for (TypeLatticeIncrement edge : getOutEdges(tt)) {
 			edge.setSeen(false);
@@ -346,7 +383,41 @@ public class TypeLattice extends DelegateTree<TypeTuple, TypeLatticeIncrement> {
 	}
 
 
+	/**
+	 * @param l
+	 * @return the increments on l from the current tuple. Memoised, as searches over the lattice keep asking for the
+	 *         same ones; a fresh copy is returned each time, so callers are free to modify it.
+	 */
 	public Set<List<TypeLatticeIncrement>> getIncrements(TTRLabel l) {
+		// at the root, the result depends on the types already seen, so only memoise it when there are none
+		boolean memoise = !isRoot(cur) || seenTypes.isEmpty();
+		Map<TTRLabel, Increments> atCur = incrementCache.get(cur);
+		Increments cached = (atCur == null) ? null : atCur.get(l);
+		if (memoise && cached != null) {
+			seenTypes = new HashSet<>(cached.seenTypes);
+			return copy(cached.increments);
+		}
+
+		Set<List<TypeLatticeIncrement>> result = computeIncrements(l);
+		if (memoise) {
+			if (atCur == null) {
+				atCur = new HashMap<>();
+				incrementCache.put(cur, atCur);
+			}
+			atCur.put(l, new Increments(result, seenTypes));
+		}
+		return result;
+	}
+
+	private static Set<List<TypeLatticeIncrement>> copy(Set<List<TypeLatticeIncrement>> increments) {
+		// added one by one, so the copy iterates in the same order as the original
+		Set<List<TypeLatticeIncrement>> result = new HashSet<List<TypeLatticeIncrement>>();
+		for (List<TypeLatticeIncrement> list : increments)
+			result.add(new ArrayList<TypeLatticeIncrement>(list));
+		return result;
+	}
+
+	private Set<List<TypeLatticeIncrement>> computeIncrements(TTRLabel l) {
 		if(isRoot(cur))
 			return getIncrements(cur, l);
 		
@@ -444,6 +515,7 @@ public class TypeLattice extends DelegateTree<TypeTuple, TypeLatticeIncrement> {
 		logger.debug("Inc: " + increment);
 		logger.debug("On: " + l);
 
+		incrementCache.clear();
 		TypeLatticeIncrement edge = TypeLatticeIncrement.getNewEdge(increment, l, idPoolEdges);
 		// edge.localIncrement=localInc;
 		TypeTuple target = TypeTuple.getNewTuple(rec, idPoolNodes);
@@ -644,6 +716,7 @@ public class TypeLattice extends DelegateTree<TypeTuple, TypeLatticeIncrement> {
 	public void mergeLatticeAt(TypeTuple thisRoot, TypeTuple otherRoot, TypeLattice lattice) {
 		// AA I think merge is possible because the root of this lattice is the same as the root of the other lattice.
 		// So it just copies everything below it.
+		incrementCache.clear();
 		for (TypeLatticeIncrement edge: lattice.getOutEdges(otherRoot)) {
 			TypeLatticeIncrement edgeCopy = TypeLatticeIncrement.getNewEdge(edge, this.idPoolEdges);
 			TypeTuple childCopy = TypeTuple.getNewTuple(lattice.getDest(edge), this.idPoolNodes);
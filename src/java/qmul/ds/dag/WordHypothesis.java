@@ -1,5 +1,6 @@
 package qmul.ds.dag;
 
+import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -13,8 +14,10 @@ import qmul.ds.action.Action;
 import qmul.ds.action.ComputationalAction;
 import qmul.ds.action.LexicalAction;
 import qmul.ds.action.atomic.Effect;
+import qmul.ds.action.atomic.IfThenElse;
 import qmul.ds.learn.CandidateSequence;
 import qmul.ds.learn.Hypothesiser;
+import qmul.ds.learn.LexicalHypothesis;
 import qmul.ds.tree.Tree;
 import qmul.ds.tree.label.Label;
 import edu.stanford.nlp.ling.HasWord;
@@ -118,6 +121,44 @@ public class WordHypothesis extends DelegateTree<DAGTupleSet, DAGEdge> {
 	
 	}
 
+	/**
+	 * A cheap necessary condition for {@link #intersectInto(CandidateSequence)}: cs can only be intersected into the
+	 * hypothesis created from cs0 if they have the same signature. This is because no branching is allowed from the
+	 * first non-computational action of a sequence onwards, so that part of cs has to match the path from the root down
+	 * to the last non-computational edge of the hypothesis exactly, and that path never changes after the hypothesis is
+	 * created.
+	 * 
+	 * @param cs
+	 * @return the signatures of the actions of cs from its first non-computational one, see
+	 *         {@link #signature(Action)}
+	 */
+	public static List<String> intersectionSignature(CandidateSequence cs) {
+		List<String> result = new ArrayList<String>();
+		int first = cs.getFirstLexicalIndex();
+		if (first < 0)
+			return result;
+		for (int i = first; i < cs.size(); i++)
+			result.add(signature(cs.get(i)));
+		return result;
+	}
+
+	/**
+	 * @param a
+	 * @return a string which is the same for any two equal actions: the name for lexical actions, the THEN clause for
+	 *         lexical hypotheses (which are equal if their THEN clauses are, whatever their names), and "*" for
+	 *         computational actions (whose equality doesn't go by name either)
+	 */
+	private static String signature(Action a) {
+		if (a instanceof ComputationalAction)
+			return "*";
+		if (!(a instanceof LexicalHypothesis))
+			return a.getName();
+		String result = "";
+		for (Effect e : ((IfThenElse) a.getEffect()).getTHENClause())
+			result += e.getSignatureKey() + ";";
+		return result;
+	}
+
 	public boolean intersectInto(CandidateSequence cs) {
 		logger.debug("_________________________________________________");
 		logger.debug("Intersecting:" + cs);
@@ -340,4 +381,89 @@ public class WordHypothesis extends DelegateTree<DAGTupleSet, DAGEdge> {
 		return result;
 
 	}
+
+	/**
+	 * The jung graph classes this extends can't be deserialized, and the tuples & edges of its graph aren't meant to be
+	 * serialized, so a hypothesis is serialized as its fields plus its nodes in breadth first order, and rebuilt from
+	 * those.
+	 */
+	private Object writeReplace() {
+		return new SerializedForm(this);
+	}
+
+	private static class SerializedForm implements Serializable {
+		private static final long serialVersionUID = 2L;
+
+		private final int id;
+		private final int howmany;
+		private final ArrayList<Long> idPoolNodes;
+		private final ArrayList<Long> idPoolEdges;
+		private final HasWord word;
+		private final double logProb;
+		private final ArrayList<SerializedNode> nodes = new ArrayList<SerializedNode>();
+
+		SerializedForm(WordHypothesis h) {
+			id = h.id;
+			howmany = h.howmany;
+			idPoolNodes = new ArrayList<Long>(h.idPoolNodes);
+			idPoolEdges = new ArrayList<Long>(h.idPoolEdges);
+			word = h.word;
+			logProb = h.logProb;
+			if (h.getRoot() == null)
+				return;
+			nodes.add(new SerializedNode(h.getRoot(), -1, null));
+			for (int i = 0; i < nodes.size(); i++) {
+				DAGTupleSet parent = nodes.get(i).tupleSet;
+				for (DAGEdge edge : h.getChildEdges(parent))
+					nodes.add(new SerializedNode(h.getOpposite(parent, edge), i, edge));
+			}
+		}
+
+		private Object readResolve() {
+			WordHypothesis h = new WordHypothesis(id);
+			h.howmany = howmany;
+			h.idPoolNodes = idPoolNodes;
+			h.idPoolEdges = idPoolEdges;
+			h.word = word;
+			h.logProb = logProb;
+			List<DAGTupleSet> tupleSets = new ArrayList<DAGTupleSet>();
+			for (SerializedNode node : nodes) {
+				DAGTupleSet tupleSet = new DAGTupleSet(node.id);
+				for (Tree tree : node.trees)
+					tupleSet.add(tree);
+				if (node.parent < 0)
+					h.addVertex(tupleSet);
+				else
+					h.addChild(new DAGEdge(node.actions, null, node.edgeId), tupleSets.get(node.parent), tupleSet,
+							EdgeType.DIRECTED);
+				tupleSets.add(tupleSet);
+			}
+			return h;
+		}
+	}
+
+	/**
+	 * A node of a serialized hypothesis: the id of its tuple set & the trees of its tuples, and the id & actions of the
+	 * edge to it from its parent, which comes before it
+	 */
+	private static class SerializedNode implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final transient DAGTupleSet tupleSet;
+		private final long id;
+		private final ArrayList<Tree> trees = new ArrayList<Tree>();
+		private final int parent;
+		private final long edgeId;
+		private final ArrayList<Action> actions;
+
+		SerializedNode(DAGTupleSet tupleSet, int parent, DAGEdge edge) {
+			this.tupleSet = tupleSet;
+			this.id = tupleSet.getId();
+			for (ParserTuple tuple : tupleSet)
+				trees.add(tuple.getTree());
+			this.parent = parent;
+			this.edgeId = (edge == null) ? 0 : edge.id;
+			this.actions = (edge == null) ? null : new ArrayList<Action>(edge.actions);
+		}
+	}
 }
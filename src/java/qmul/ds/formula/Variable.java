@@ -27,35 +27,76 @@ public class Variable extends AtomicFormula {
 	private static final String EVENT_VARIABLE_ROOT = "e";
 	private static final String PROPOSITION_VARIABLE_ROOT = "p";
 
-	private static ArrayList<Variable> entityPool = new ArrayList<Variable>();
-	private static ArrayList<Variable> eventPool = new ArrayList<Variable>();
-	private static ArrayList<Variable> propositionPool = new ArrayList<Variable>();
+	/**
+	 * The fresh variables handed out so far, by type
+	 */
+	private static class Pools {
+		final ArrayList<Variable> entityPool = new ArrayList<Variable>();
+		final ArrayList<Variable> eventPool = new ArrayList<Variable>();
+		final ArrayList<Variable> propositionPool = new ArrayList<Variable>();
+	}
+
+	private static final Pools pools = new Pools();
+
+	private static final ThreadLocal<Pools> privatePools = new ThreadLocal<Pools>();
 
 	/**
-	 * A fresh entity variable x1, x2 etc
+	 * Gives the calling thread its own fresh variable counters, starting again from x1, e1, p1. For parallel workers
+	 * (see {@link qmul.ds.action.meta.MetaElement#usePrivatePool()}), so that the variables each one gets don't depend
+	 * on how the threads happen to be scheduled. Other threads keep using the shared counters.
 	 */
-	public static Variable getFreshEntityVariable() {
-		Variable v = new Variable(Variable.ENTITY_VARIABLE_ROOT + (entityPool.size() + 1));
-		entityPool.add(v);
+	public static void usePrivatePools() {
+		privatePools.set(new Pools());
+	}
+
+	/**
+	 * @param pool
+	 * @param root
+	 * @return the next variable root1, root2 etc after those in pool, which it is added to
+	 */
+	private static Variable fresh(ArrayList<Variable> pool, String root) {
+		Variable v = new Variable(root + (pool.size() + 1));
+		pool.add(v);
 		return v;
 	}
 
 	/**
-	 * A fresh event variable e1, e2 etc
+	 * A fresh entity variable x1, x2 etc. Only the shared counters are locked; a thread's private ones aren't.
+	 */
+	public static Variable getFreshEntityVariable() {
+		Pools own = privatePools.get();
+		if (own != null)
+			return fresh(own.entityPool, ENTITY_VARIABLE_ROOT);
+
+		synchronized (pools) {
+			return fresh(pools.entityPool, ENTITY_VARIABLE_ROOT);
+		}
+	}
+
+	/**
+	 * A fresh event variable e1, e2 etc. Only the shared counters are locked; a thread's private ones aren't.
 	 */
 	public static Variable getFreshEventVariable() {
-		Variable v = new Variable(Variable.EVENT_VARIABLE_ROOT + (eventPool.size() + 1));
-		eventPool.add(v);
-		return v;
+		Pools own = privatePools.get();
+		if (own != null)
+			return fresh(own.eventPool, EVENT_VARIABLE_ROOT);
+
+		synchronized (pools) {
+			return fresh(pools.eventPool, EVENT_VARIABLE_ROOT);
+		}
 	}
 
 	/**
-	 * A fresh proposition variable p1, p2 etc
+	 * A fresh proposition variable p1, p2 etc. Only the shared counters are locked; a thread's private ones aren't.
 	 */
 	public static Variable getFreshPropositionVariable() {
-		Variable v = new Variable(Variable.PROPOSITION_VARIABLE_ROOT + (propositionPool.size() + 1));
-		propositionPool.add(v);
-		return v;
+		Pools own = privatePools.get();
+		if (own != null)
+			return fresh(own.propositionPool, PROPOSITION_VARIABLE_ROOT);
+
+		synchronized (pools) {
+			return fresh(pools.propositionPool, PROPOSITION_VARIABLE_ROOT);
+		}
 	}
 
 	/**
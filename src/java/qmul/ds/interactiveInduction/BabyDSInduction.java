@@ -6,7 +6,12 @@ import edu.stanford.nlp.util.Pair;
 import org.apache.log4j.Logger;
 import qmul.ds.InteractiveContextParser;
 import qmul.ds.Utterance;
+import qmul.ds.action.Grammar;
+import qmul.ds.action.SpeechActInferenceGrammar;
+import qmul.ds.action.atomic.EffectFactory;
+import qmul.ds.action.meta.MetaElement;
 import qmul.ds.formula.TTRRecordType;
+import qmul.ds.formula.Variable;
 import qmul.ds.learn.Evaluation;
 import qmul.ds.learn.RecordTypeCorpus;
 import qmul.ds.learn.TTRWordLearner;
@@ -14,6 +19,11 @@ import qmul.ds.learn.TTRWordLearner;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
 
 
 public class BabyDSInduction {
@@ -36,6 +46,7 @@ public class BabyDSInduction {
     private static final double RATIO = 0.9;  // Train-Test split ratio
     private static final int FOLDS = 0;  // Number of folds for k-fold cross validation. Use 0 for train-test split.
     private static final boolean SAVE_TO_FILE = true;  // Save the training and testing sets to file
+    private static final int FOLD_THREADS = Runtime.getRuntime().availableProcessors();  // Number of folds to train and evaluate concurrently
 
     /**
      * A pipeline for full evaluation:
@@ -45,25 +56,50 @@ public class BabyDSInduction {
      * 4. Returns the calculated results: mainly semantic accuracy and parsing coverage.
      */
     public Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>> evaluate_model(int kfcv) {
+        File[] train_test_files = get_corpus_files(kfcv);
+        RecordTypeCorpus[] corpora = new RecordTypeCorpus[train_test_files.length];
+        for (int i = 0; i < train_test_files.length; i++) {
+            corpora[i] = new RecordTypeCorpus();
+            try {
+                corpora[i].loadCorpus(train_test_files[i]);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            logger.info("Loaded corpus: " + train_test_files[i].getName());
+        }
+        return evaluate_model(n -> new InteractiveContextParser(modelPath, n), corpora[0], corpora[1]);
+    }
+
+    /**
+     * Evaluates the lexicons learned by learner on the training and testing sets. The lexicons are handed to the
+     * parsers in memory (see {@link qmul.ds.learn.WordHypothesisBase#getLearnedLexicon(int)}), rather than saved
+     * and loaded back from modelPath.
+     */
+    public Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>> evaluate_model(TTRWordLearner learner, RecordTypeCorpus trainCorpus, RecordTypeCorpus testCorpus) {
+        return evaluate_model(n -> new InteractiveContextParser(learner.getHypothesisBase().getLearnedLexicon(n),
+                new Grammar(modelPath), new SpeechActInferenceGrammar(modelPath)), trainCorpus, testCorpus);
+    }
+
+    /**
+     * Evaluates the parser with the top-n learned actions made by parsers, for each n up to TOP_N.
+     */
+    private Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>> evaluate_model(IntFunction<InteractiveContextParser> parsers, RecordTypeCorpus trainCorpus, RecordTypeCorpus testCorpus) {
         HashMap<Integer, HashMap<String, HashMap<String, Double>>> semanticAccuracy = new HashMap<>();
         HashMap<Integer, HashMap<String, ArrayList<Double>>> parsingCoverage = new HashMap<>();  // Should have used double[] instead of ArrayList<Double>... Anyways.
         Evaluation eval = new Evaluation();
         for (int n = 1; n <= TOP_N; n++) {
             logger.info("Loading parser with top-" + n + " learned actions...");
-            InteractiveContextParser parser = new InteractiveContextParser(modelPath, n);
-            File[] train_test_files = get_corpus_files(kfcv);
-            for (int i = 0; i < train_test_files.length; i++) {
+            InteractiveContextParser parser;
+            // lexicon & grammar loading goes through the static macro templates of EffectFactory
+            synchronized (EffectFactory.class) {
+                parser = parsers.apply(n);
+            }
+            RecordTypeCorpus[] train_test_corpora = {trainCorpus, testCorpus};
+            for (int i = 0; i < train_test_corpora.length; i++) {
                 int parsedCount = 0;
                 int exactMatchCount = 0;
-                File file = train_test_files[i];
                 String dataset_name = i == 0 ? "train" : "test";
-                RecordTypeCorpus corpus = new RecordTypeCorpus();
-                try {
-                    corpus.loadCorpus(file);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                logger.info("Loaded corpus: " + file.getName());
+                RecordTypeCorpus corpus = train_test_corpora[i];
                 List<TTRRecordType[]> evalList = new ArrayList<>();
                 for (Pair<Sentence<Word>, TTRRecordType> pair : corpus) {
                     parser.init();  // Restarts parser.
@@ -282,25 +318,79 @@ public class BabyDSInduction {
      * @param trainingDataPath The path to the training data file.
      */
     public void train_model(String trainingDataPath) {
-        TTRWordLearner babyDS = new TTRWordLearner(corpusPath);
-        String lexiconPath = modelPath + "lexicon.lex";
         try {
-            File corpusFile = new File(trainingDataPath);
-            babyDS.loadCorpus(corpusFile);
-            logger.info("BabyDS training starting...");
-            babyDS.learn();
-
-            babyDS.getHypothesisBase().saveLearnedLexicon(lexiconPath, 1);  // Testing if top-1 can be a thing here:
-            babyDS.getHypothesisBase().saveLearnedLexicon(lexiconPath, 2);
-            babyDS.getHypothesisBase().saveLearnedLexicon(lexiconPath, 3);
-            babyDS.getHypothesisBase().saveLearnedLexicon(lexiconPath, 4);
-            babyDS.getHypothesisBase().saveLearnedLexicon(lexiconPath, 5);
-
+            RecordTypeCorpus corpus = new RecordTypeCorpus();
+            corpus.loadCorpus(new File(trainingDataPath));
+            train_model(corpus, modelPath, Runtime.getRuntime().availableProcessors());
         } catch(Exception e) {
 			e.printStackTrace();
 		}
     }
 
+    /**
+     * Trains the BabyDS model on a given training corpus, and saves the top-5 learned lexicon to files in outputDir.
+     * @param trainCorpus The training data.
+     * @param outputDir The directory to save the lexicon files to, created if it doesn't exist.
+     * @param threads The number of threads for the learner to hypothesise on.
+     * @return The learner, whose hypothesis base holds the learned lexicon.
+     */
+    public TTRWordLearner train_model(RecordTypeCorpus trainCorpus, String outputDir, int threads) throws IOException {
+        TTRWordLearner babyDS;
+        // lexicon loading goes through the static macro templates of EffectFactory
+        synchronized (EffectFactory.class) {
+            babyDS = new TTRWordLearner(corpusPath, trainCorpus);
+        }
+        babyDS.setThreads(threads);
+        logger.info("BabyDS training starting...");
+        babyDS.learn();
+
+        new File(outputDir).mkdirs();
+        String lexiconPath = outputDir + "lexicon.lex";
+        for (int n = 1; n <= 5; n++)  // Testing if top-1 can be a thing here
+            babyDS.getHypothesisBase().saveLearnedLexicon(lexiconPath, n);
+        return babyDS;
+    }
+
+
+    /**
+     * Trains and evaluates the k folds concurrently. Each fold has its own learner and parsers, saves its lexicon to
+     * its own directory (kfcv_i under modelPath), and hands it to its parsers in memory.
+     * @param train_test_pairs The training and testing sets of each fold.
+     * @param threads The number of folds to run at once.
+     * @return The results of evaluate_model for each fold, in fold order.
+     */
+    public List<Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>>> run_folds(List<Pair<RecordTypeCorpus, RecordTypeCorpus>> train_test_pairs, int threads) {
+        int workers = Math.max(1, Math.min(threads, train_test_pairs.size()));
+        // the processors left over are shared out between the learners of the folds running at once
+        int learnerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Future<Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>>>> futures = new ArrayList<>();
+        for (int i = 0; i < train_test_pairs.size(); i++) {
+            int fold = i;
+            Pair<RecordTypeCorpus, RecordTypeCorpus> pair = train_test_pairs.get(i);
+            futures.add(executor.submit(() -> {
+                // rule specs share metavariables by name, so each fold needs its own, and its own fresh variable
+                // counters so that its numbering doesn't depend on the other folds
+                MetaElement.usePrivatePool();
+                Variable.usePrivatePools();
+                logger.info("Training fold " + fold + "...");
+                TTRWordLearner learner = train_model(pair.first(), modelPath + "kfcv_" + fold + File.separator, learnerThreads);
+                logger.info("Evaluating fold " + fold + "...");
+                return evaluate_model(learner, pair.first(), pair.second());
+            }));
+        }
+        List<Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>>> results = new ArrayList<>();
+        try {
+            for (Future<Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>>> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Fold failed: " + e.getMessage(), e);
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+
 
     /**
      * A pipeline for full training and evaluation:
@@ -314,12 +404,8 @@ public class BabyDSInduction {
             List<HashMap<Integer, HashMap<String, ArrayList<Double>>>> kfParsCvgResults = new ArrayList<>();
             try {
                 List<Pair<RecordTypeCorpus, RecordTypeCorpus>> train_test_pairs = kFoldCrossValidation(kFold, saveToFile);
-                int i = 0;  // fold index, aka kfcv counter.
-                for (Pair<RecordTypeCorpus, RecordTypeCorpus> pair : train_test_pairs) {
-                    int train_size = pair.first().size();
-                    train_model(corpusPath + "babyds_kfcv_"+i+"_train_"+train_size+".txt");  // currently it doesn't save the kfcv models separately, just overwrites.
-                    Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>> kfResultsPair = evaluate_model(i+1);
-                    kfSemAccResults.add(kfResultsPair.first());  // Maybe refactor so testing data can be specified...
+                for (Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>> kfResultsPair : run_folds(train_test_pairs, FOLD_THREADS)) {
+                    kfSemAccResults.add(kfResultsPair.first());
                     kfParsCvgResults.add(kfResultsPair.second());
                 }
                 // !! Uncomment below to print results for each fold !!  // todo test this...
@@ -372,8 +458,13 @@ public class BabyDSInduction {
             Pair<RecordTypeCorpus, RecordTypeCorpus> train_test_pair = train_test_split(RATIO, saveToFile);
             int train_size = train_test_pair.first().size();
             int test_size = train_test_pair.second().size();
-            train_model(corpusPath + "babyds_train_" + train_size + ".txt");
-            Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>> ttsResults = evaluate_model(0);
+            Pair<HashMap<Integer, HashMap<String, HashMap<String, Double>>>, HashMap<Integer, HashMap<String, ArrayList<Double>>>> ttsResults;
+            try {
+                TTRWordLearner learner = train_model(train_test_pair.first(), modelPath, Runtime.getRuntime().availableProcessors());
+                ttsResults = evaluate_model(learner, train_test_pair.first(), train_test_pair.second());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
             print_semanticAcc_results(ttsResults.first(), String.format("Train-Test Split | Ratio: %.2f | Data Sizes: train=%d - test=%d",
                     RATIO, train_size, test_size));
             System.out.println();
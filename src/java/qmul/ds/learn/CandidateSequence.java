@@ -1,8 +1,12 @@
 package qmul.ds.learn;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -13,6 +17,7 @@ import qmul.ds.action.ComputationalAction;
 import qmul.ds.tree.Tree;
 import edu.stanford.nlp.ling.HasWord;
 import edu.stanford.nlp.ling.Word;
+import edu.stanford.nlp.util.Pair;
 
 /**
  * This class represents hypothesised sequences of actions in induction as produced by the {@link Hypothesiser} class.
@@ -252,6 +257,48 @@ public class CandidateSequence extends ArrayList<Action> {
 	 *         sequence.
 	 */
 	public Set<List<CandidateSequence>> split() {
+		Set<List<CandidateSequence>> result = new HashSet<List<CandidateSequence>>();
+		for (Iterator<List<CandidateSequence>> splits = splitIterator(); splits.hasNext();)
+			result.add(splits.next());
+		return result;
+	}
+
+	/**
+	 * Like {@link #split()}, but keeps at most maxSplits of the splits, sampled uniformly (by reservoir sampling) from
+	 * {@link #splitIterator()}, so memory is bounded however many splits there are.
+	 * 
+	 * @param maxSplits
+	 * @param random
+	 * @return a sample of at most maxSplits splits of this sequence
+	 */
+	public Set<List<CandidateSequence>> split(int maxSplits, Random random) {
+		List<List<CandidateSequence>> reservoir = new ArrayList<List<CandidateSequence>>(maxSplits);
+		int seen = 0;
+		for (Iterator<List<CandidateSequence>> splits = splitIterator(); splits.hasNext();) {
+			List<CandidateSequence> split = splits.next();
+			seen++;
+			if (reservoir.size() < maxSplits)
+				reservoir.add(split);
+			else {
+				int k = random.nextInt(seen);
+				if (k < maxSplits)
+					reservoir.set(k, split);
+			}
+		}
+		if (seen > maxSplits)
+			logger.info("Sampled " + maxSplits + " of " + seen + " splits of " + words);
+		return new HashSet<List<CandidateSequence>>(reservoir);
+	}
+
+	/**
+	 * Enumerates the splits of {@link #split()} lazily, depth first: only the split being built (one sequence per
+	 * word, with the points the rest of the sequence can be chopped at) is held in memory. Each split comes from a
+	 * different, increasing choice of chop points, so no split is produced twice and there's no need to remember the
+	 * ones already produced.
+	 * 
+	 * @return an iterator over all possible splits of this sequence into subsequences corresponding to its words
+	 */
+	public Iterator<List<CandidateSequence>> splitIterator() {
 		int numFormulae = numFormulaDecorations();
 		logger.debug("Splitting: " + this);
 		logger.debug("words are: " + this.words);
@@ -260,16 +307,54 @@ public class CandidateSequence extends ArrayList<Action> {
 			throw new IllegalStateException("Candidate Sequence must contain the same number of "
 					+ "lex hyps with formula decorations as the number of words in this sequence. But here num words="
 					+ words.size() + ", and num formulae=" + numFormulae);
-		Set<List<CandidateSequence>> result = new HashSet<List<CandidateSequence>>();
 		// __________________________________
 		// base case for recursion:
 		if (this.words.size() == 1) {
 			List<CandidateSequence> l = new ArrayList<CandidateSequence>();
 			l.add(this.removeComputationalFromRight());
-			result.add(l);
-			return result;
+			return Collections.singletonList(l).iterator();
 		}
 		// __________________________________
+		final List<Pair<Integer, ParserTuple>> chopPoints = chopPoints();
+		return new Iterator<List<CandidateSequence>>() {
+			private int next = 0;
+			private CandidateSequence chopLeft = null;
+			private Iterator<List<CandidateSequence>> restSplits = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!restSplits.hasNext() && next < chopPoints.size()) {
+					int j = chopPoints.get(next).first();
+					ParserTuple restStart = chopPoints.get(next).second();
+					next++;
+					chopLeft = new CandidateSequence(start, subList(0, j), words.subList(0, 1));
+					CandidateSequence rest = new CandidateSequence(restStart, subList(j, size()), words.subList(1,
+							words.size()));
+					// all possible splits of the rest of this sequence, recursively.
+					restSplits = rest.splitIterator();
+				}
+				return restSplits.hasNext();
+			}
+
+			@Override
+			public List<CandidateSequence> next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				// merge chopLeft with the next split of the rest
+				List<CandidateSequence> li = new ArrayList<CandidateSequence>();
+				li.add(chopLeft);
+				li.addAll(restSplits.next());
+				return li;
+			}
+		};
+	}
+
+	/**
+	 * @return the indices the first word's sequence can end at (exclusive), each with the tuple the rest of the
+	 *         sequence starts from
+	 */
+	private List<Pair<Integer, ParserTuple>> chopPoints() {
+		List<Pair<Integer, ParserTuple>> result = new ArrayList<Pair<Integer, ParserTuple>>();
 		ParserTuple start = this.start;
 		Action a;
 		int i = 0;
@@ -292,18 +377,7 @@ public class CandidateSequence extends ArrayList<Action> {
 		for (int j = i + 1; j < size() - 1; j++) {
 			if (get(j).getName().startsWith(TTRHypothesiser.HYP_ADJUNCTION_PREFIX))
 				continue;
-			CandidateSequence chopLeft = new CandidateSequence(this.start, this.subList(0, j), this.words.subList(0, 1));
-			CandidateSequence rest = new CandidateSequence(start, this.subList(j, this.size()), this.words.subList(1,
-					this.words.size()));
-			// get all possible splits of the rest of this sequence recursively.
-			Set<List<CandidateSequence>> restSplits = rest.split();
-			// now merge chopLeft with the result of split(rest)
-			for (List<CandidateSequence> listRest : restSplits) {
-				List<CandidateSequence> li = new ArrayList<CandidateSequence>();
-				li.add(chopLeft);
-				li.addAll(listRest);
-				result.add(li);
-			}
+			result.add(new Pair<Integer, ParserTuple>(j, start));
 			// skip current sequence of computational actions, if any
 			while (j < size() && (get(j) instanceof ComputationalAction || get(j).getName().startsWith(TTRHypothesiser.HYP_ADJUNCTION_PREFIX))) {
 				Tree clone = start.getTree().clone();
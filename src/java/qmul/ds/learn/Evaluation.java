@@ -3,9 +3,17 @@ package qmul.ds.learn;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
@@ -30,6 +38,26 @@ public class Evaluation {
 	public static RecordTypeCorpus corpus = new RecordTypeCorpus();
 	public static List<TTRRecordType[]> testGoalPairs = new ArrayList<TTRRecordType[]>();
 
+	/**
+	 * added to the score of every pair of compatible fields in {@link #maximalMapping(TTRRecordType, TTRRecordType, HashMap)}
+	 */
+	private static final double MAPPED_WEIGHT = 1e-6;
+
+	/**
+	 * see {@link #subsumes(Formula, Formula)}
+	 */
+	private final Map<String, Boolean> subsumptionCache = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * the number of pairs evaluated at once by {@link #precisionRecallMacro(List)} and
+	 * {@link #precisionRecallMicro(List)}
+	 */
+	protected int threads = Runtime.getRuntime().availableProcessors();
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	/**
 	 * A class for evaluation results including calculating F-score
 	 * @author mpurver
@@ -149,180 +177,187 @@ public class Evaluation {
 	}
 
 
+	/**
+	 * Finds the mapping from the fields of hypttr to those of o that scores the most nodes (see
+	 * {@link #totalNodesMapped(TTRRecordType, TTRRecordType)}), as a maximum weight bipartite matching between their
+	 * fields: each pair of {@link #compatible(TTRField, TTRField)} fields is weighted by its
+	 * {@link #fieldScore(TTRField, TTRField, TTRRecordType, TTRRecordType)}, plus a little so that a pair scoring 0 is
+	 * still mapped rather than left out. The matching weighs pairs one at a time, so its pairs are then kept best first
+	 * only as long as they map labels (and the variables in their types) consistently with those already kept, see
+	 * {@link #mapConsistently(TTRField, TTRField, HashMap)}; fields whose pair isn't kept are mapped to the best field
+	 * left that they can be mapped to consistently, if any.
+	 * 
+	 * @param hypttr
+	 * @param o
+	 * @param map
+	 *            the mapping is added to this
+	 * @return map, with the label of each mapped field of hypttr mapped to that of its field in o
+	 */
 	public HashMap<Variable, Variable> maximalMapping(TTRRecordType hypttr, TTRRecordType o,
 			HashMap<Variable, Variable> map) {
-		// Integer myTotal = total; // number of nodes successfully mapped to o
-		logger.debug("TOP LEVEL checking max mapping" + hypttr + " is subsumed by " + o);
-		if (hypttr.isEmpty()) {
-			logger.debug("final mapping");
-			for (Variable v : map.keySet())
-				logger.debug(v + ":" + map.get(v));
-			return map;
-		}
-		if (!(o instanceof TTRRecordType))
+		List<TTRField> hypFields = hypttr.getFields();
+		List<TTRField> otherFields = o.getFields();
+		if (hypFields.isEmpty() || otherFields.isEmpty())
 			return map;
 
-		TTRRecordType other = (TTRRecordType) o;
-		//order fields in hypttr to give precedence to manifest fields first...
-		logger.debug(hypttr);
-		logger.debug(other);
-		other = orderByManifest(other,true); //not for other, need to check these first
-		hypttr = orderByManifest(hypttr,true);
-		logger.debug(hypttr);
-		logger.debug(other);
-		TTRField last = hypttr.getFields().get(hypttr.getFields().size() - 1);
-		logger.debug("OUR OUTER testing subsumption for field:" + last);
-		//pause();pause();
-		for (int j = other.getFields().size() - 1; j >= 0; j--) {
-			
-			TTRField otherField = other.getFields().get(j);
-			logger.debug("inner checking " + otherField.toString());
-			//pause();pause();
-			// special case for restrictors
-			if (last.getType() != null && otherField.getType() != null && last.getType() instanceof TTRRecordType
-					&& otherField.getType() instanceof TTRRecordType) {
-				logger.debug(last + " and " + otherField + " both RT types");
-				// look for some subsumption (assume we don't have dominant referenced fields outside of scope):
-				HashMap<Variable, Variable> embeddedmap = maximalMapping(((TTRRecordType) last.getType()),
-						((TTRRecordType) otherField.getType()), new HashMap<Variable, Variable>());
-				if (embeddedmap.keySet().size() > 0||
-						((TTRRecordType) last.getType()).toString().equals("[]")&&((TTRRecordType) otherField.getType()).toString().equals("[]")) {
-					logger.debug(last + " internal subsumes " + otherField);
-					map.put(last.getLabel(), otherField.getLabel()); // put the link between labels there?
-					logger.debug("map is now:" + map);
-					return maximalMapping(removeLabel(hypttr, last.getLabel()),
-							removeLabel(other, otherField.getLabel()), map);
+		double[][] weights = new double[hypFields.size()][otherFields.size()];
+		for (int i = 0; i < hypFields.size(); i++)
+			for (int j = 0; j < otherFields.size(); j++)
+				if (compatible(hypFields.get(i), otherFields.get(j)))
+					weights[i][j] = MAPPED_WEIGHT + fieldScore(hypFields.get(i), otherFields.get(j), hypttr, o);
+
+		final int[] assignment = maximumWeightAssignment(weights, hypFields.size(), otherFields.size());
+		List<Integer> assigned = new ArrayList<Integer>();
+		for (int i = 0; i < assignment.length; i++)
+			if (assignment[i] >= 0 && weights[i][assignment[i]] > 0)
+				assigned.add(i);
+		Collections.sort(assigned, (i, j) -> Double.compare(weights[j][assignment[j]], weights[i][assignment[i]]));
+
+		boolean[] mapped = new boolean[otherFields.size()];
+		List<Integer> rejected = new ArrayList<Integer>();
+		for (int i : assigned) {
+			if (mapConsistently(hypFields.get(i), otherFields.get(assignment[i]), map))
+				mapped[assignment[i]] = true;
+			else
+				rejected.add(i);
+		}
+		for (final int i : rejected) {
+			List<Integer> candidates = new ArrayList<Integer>();
+			for (int j = 0; j < otherFields.size(); j++)
+				if (!mapped[j] && weights[i][j] > 0)
+					candidates.add(j);
+			Collections.sort(candidates, (j, k) -> Double.compare(weights[i][k], weights[i][j]));
+			for (int j : candidates) {
+				if (mapConsistently(hypFields.get(i), otherFields.get(j), map)) {
+					mapped[j] = true;
+					break;
 				}
-		} else if ((last.getType()==null||!(last.getType() instanceof PredicateArgumentFormula)) && (otherField.getType()==null||!(otherField.getType() instanceof PredicateArgumentFormula))
-				&&last.subsumesMapped(otherField, map)) { //problem is it maps all arguments, don't really want that?
-				//just for unmaninfest/singleton types
-				logger.debug(last + " subsumes " + otherField);
-				logger.debug("map is now:" + map);
-				//pause();pause();
-				return maximalMapping(removeLabel(hypttr, last.getLabel()), removeLabel(other, otherField.getLabel()),
-						map);
-			} else {
-				logger.debug("checking partial subsumption for " + last + " against " + otherField);
-				boolean partiallySubsumesMapped = false;
-				if (last.getLabel().subsumesMapped(otherField.getLabel(), map)
-						&& ((last.getDSType() == null && otherField.getDSType() == null) || (last.getDSType() != null && last
-								.getDSType().equals(otherField.getDSType())))) {
-					logger.debug("field labels subsume " + last + otherField);
-					// look for partial mapping here for predicates only, if we get first arg fine..?
-					if (last.getType() != null && otherField.getType() != null) {
-						if (last.getType() instanceof PredicateArgumentFormula
-								&& otherField.getType() instanceof PredicateArgumentFormula) {
-							logger.debug("both pred types " + last + otherField);
-							if (((PredicateArgumentFormula) last.getType()).getPredicate().equals(
-									((PredicateArgumentFormula) otherField.getType()).getPredicate())) {
-								partiallySubsumesMapped = true;
-								logger.debug("pred match!" + last + otherField);
-								// now only make false if arity is wrong in terms of order? arg1 == Targ1 etc..
-
-								int k = 0; // number of args in right position and subsuming
-								List<Formula> myargs = ((PredicateArgumentFormula) last.getType()).getArguments();
-								List<Formula> otherargs = ((PredicateArgumentFormula) otherField.getType())
-										.getArguments();
-								if (myargs.size() > otherargs.size()) {
-									myargs = myargs.subList(0, otherargs.size()); // if myargs is longer, still ok..
-								}
-
-								argloop: for (int i = 0; i < myargs.size(); i++) {
-									logger.debug("arg" + i + "  " + myargs.get(i));
-									logger.debug(hypttr);
-									logger.debug(other);
-									if ((myargs.get(i).toString().contains(".") || myargs.get(i).toString()
-											.startsWith("r"))
-											&& (otherargs.get(i).toString().contains(".") || otherargs.get(i)
-													.toString().startsWith("r"))) { // path
-										logger.debug("both paths or restrictors");
-										// both will be embedded RTs, so let's get those
-										String myPathString = !myargs.get(i).toString().contains(".") ? "."
-												+ myargs.get(i).toString() : myargs.get(i).toString();
-										String otherPathString = !otherargs.get(i).toString().contains(".") ? "."
-												+ otherargs.get(i).toString() : otherargs.get(i).toString();
-
-										TTRRelativePath mypath = (TTRRelativePath) TTRPath.parse(myPathString);
-										TTRRelativePath otherPath = (TTRRelativePath) TTRPath.parse(otherPathString);
-										logger.debug("both now paths  " + myPathString + " and " + otherPathString);
-										// check whether one subsumes t'other?
-										//if (hypttr.isEmpty()){
-										//	continue argloop;
-										//}
-										mypath.setParentRecType(hypttr);
-										otherPath.setParentRecType(other);
-										logger.debug("mypath" + mypath.getMinimalSuperTypeWith());
-										try {
-											logger.debug("otherpath" + otherPath.getMinimalSuperTypeWith());
-										} catch (Exception e) {
-											// TODO restrictor dependence
-											logger.error("already removed  restrictor as it doesn't match..");
-											continue argloop;
-										}
-										if (mypath.getLabels().size() > otherPath.getLabels().size()
-												|| !otherPath.getMinimalSuperTypeWith().subsumes(
-														mypath.getMinimalSuperTypeWith())) {
-											continue argloop; // doesn't subsume, size mismatch
-										} else {
-											k++;
-										}
-									} else if (hypttr
-											.getRecord()
-											.get(new TTRLabel(myargs.get(i).toString()))
-											.subsumes(
-													other.getRecord().get(new TTRLabel(otherargs.get(i).toString())))) {
-										logger.debug(hypttr
-											.getRecord()
-											.get(new TTRLabel(myargs.get(i).toString())));
-										logger.debug(other.getRecord().get(new TTRLabel(otherargs.get(i).toString())));
-										logger.debug(map);
-										//pause();pause();
-										k++; // number of args correct, only needs one?
-										break;
-									}
-								}
-
-								if (k == -1) { // no correct args //ok let's allow it..
-									// TODO we're not permitting less than one subsuming arg in correct position- ok I
-									// guess?
-									// needs to be over 1 arg to make it partially mapped
-									partiallySubsumesMapped = false;
-									map.remove(last.getLabel());
-								}
-							} else { // don't add
-								partiallySubsumesMapped = false;
-								//map.remove(last.getLabel());
-								logger.debug("Failed partial subsumption for: " + otherField);
-								logger.debug("map is now:" + map);
-							}
-							// pause();pause();
-						} else if (last.getType() instanceof TTRRecordType
-								&& otherField.getType() instanceof TTRRecordType) {
-							logger.debug(last + " and " + otherField + " both RT types");
-						}
-					}
+			}
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Maximal mapping of " + hypttr + " to " + o + ": " + map);
+		return map;
+	}
+
+	/**
+	 * @param field
+	 * @param other
+	 * @return true if field can be mapped to other: if both are record types which can be mapped to each other (or
+	 *         are both empty), both predicates with the same predicate & ds type, or otherwise if field subsumes other
+	 */
+	protected boolean compatible(TTRField field, TTRField other) {
+		Formula type = field.getType();
+		Formula otherType = other.getType();
+		if (type instanceof TTRRecordType && otherType instanceof TTRRecordType) {
+			TTRRecordType rt = (TTRRecordType) type;
+			TTRRecordType otherRT = (TTRRecordType) otherType;
+			return (rt.isEmpty() && otherRT.isEmpty())
+					|| !maximalMapping(rt, otherRT, new HashMap<Variable, Variable>()).isEmpty();
+		}
+		if (type instanceof PredicateArgumentFormula || otherType instanceof PredicateArgumentFormula) {
+			return type instanceof PredicateArgumentFormula && otherType instanceof PredicateArgumentFormula
+					&& (field.getDSType() == null ? other.getDSType() == null : field.getDSType().equals(
+							other.getDSType()))
+					&& ((PredicateArgumentFormula) type).getPredicate().equals(
+							((PredicateArgumentFormula) otherType).getPredicate());
+		}
+		return subsumes(field, other);
+	}
+
+	/**
+	 * Adds the mapping of field to other to map if it is consistent with it, as the mapping used to be built up: fields
+	 * of record types & predicates just need their labels mapped consistently (their insides are scored by
+	 * {@link #fieldScore(TTRField, TTRField, TTRRecordType, TTRRecordType)}), other fields must subsume each other under
+	 * map, which maps the variables in their types too.
+	 * 
+	 * @param field
+	 * @param other
+	 *            a field {@link #compatible(TTRField, TTRField)} with field
+	 * @param map
+	 * @return true if field was mapped to other, otherwise map is left as it was
+	 */
+	private boolean mapConsistently(TTRField field, TTRField other, HashMap<Variable, Variable> map) {
+		if (field.getType() instanceof TTRRecordType || field.getType() instanceof PredicateArgumentFormula)
+			return field.getLabel().subsumesMapped(other.getLabel(), map);
+		return field.subsumesMapped(other, map);
+	}
 
-					if (partiallySubsumesMapped == true) {
-						logger.debug("Partially subsumed for :" + otherField);
-						logger.debug("map is now:" + map);
-						// recurse
-						return maximalMapping(removeLabel(hypttr, last.getLabel()),
-								removeLabel(other, otherField.getLabel()), map);
-					} else { // don't add
-						map.remove(last.getLabel());
-						logger.debug("Failed partial subsumption for: " + otherField);
-						logger.debug("map is now:" + map);
+	/**
+	 * @param f
+	 * @param other
+	 * @return f.subsumes(other), memoised: this only depends on f & other, not on the record types they're in
+	 */
+	protected boolean subsumes(Formula f, Formula other) {
+		String key = f + "\t" + other;
+		Boolean result = subsumptionCache.get(key);
+		if (result == null) {
+			result = f.subsumes(other);
+			subsumptionCache.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * The Hungarian algorithm, on weights padded out to a square matrix with 0s
+	 * 
+	 * @param weights
+	 * @param rows
+	 * @param cols
+	 * @return the column assigned to each row so that the sum of their weights is maximal, -1 for none
+	 */
+	private static int[] maximumWeightAssignment(double[][] weights, int rows, int cols) {
+		int n = Math.max(rows, cols);
+		// potentials & matching of the (1-indexed) min cost problem, on costs -weights
+		double[] u = new double[n + 1];
+		double[] v = new double[n + 1];
+		int[] p = new int[n + 1];
+		int[] way = new int[n + 1];
+		for (int i = 1; i <= n; i++) {
+			p[0] = i;
+			int j0 = 0;
+			double[] minv = new double[n + 1];
+			Arrays.fill(minv, Double.POSITIVE_INFINITY);
+			boolean[] used = new boolean[n + 1];
+			do {
+				used[j0] = true;
+				int i0 = p[j0];
+				int j1 = 0;
+				double delta = Double.POSITIVE_INFINITY;
+				for (int j = 1; j <= n; j++) {
+					if (used[j])
+						continue;
+					double cost = (i0 <= rows && j <= cols) ? -weights[i0 - 1][j - 1] : 0;
+					double cur = cost - u[i0] - v[j];
+					if (cur < minv[j]) {
+						minv[j] = cur;
+						way[j] = j0;
+					}
+					if (minv[j] < delta) {
+						delta = minv[j];
+						j1 = j;
 					}
-				} else {
-					map.remove(last.getLabel());
-					logger.debug("Failed subsumption for:" + otherField);
-					logger.debug("map is now:" + map);
 				}
-			}
+				for (int j = 0; j <= n; j++) {
+					if (used[j]) {
+						u[p[j]] += delta;
+						v[j] -= delta;
+					} else
+						minv[j] -= delta;
+				}
+				j0 = j1;
+			} while (p[j0] != 0);
+			do {
+				int j1 = way[j0];
+				p[j0] = p[j1];
+				j0 = j1;
+			} while (j0 != 0);
 		}
-		// no subsumption for any of them or has gone through the loop, either way need to remove and recurse
-		hypttr = removeLabel(hypttr, last.getLabel());
-		return maximalMapping(hypttr, o, map);
+		int[] result = new int[rows];
+		Arrays.fill(result, -1);
+		for (int j = 1; j <= cols; j++)
+			if (p[j] != 0 && p[j] <= rows)
+				result[p[j] - 1] = j - 1;
+		return result;
 	}
 
 	/**
@@ -367,136 +402,150 @@ public class Evaluation {
 				continue;
 			}
 			logger.debug("Var mapping= " + var + ":" + mapping.get(var));
-			int nodesMapped = 0; // will do a simple calc over each one
-			int totalNodes = 0; // will do a simple calc over each one
-			nodesMapped++;
-			totalNodes++; // every mapped field gets one point
 			TTRField myfield = (TTRField) hypttr.getRecord().get(new TTRLabel(var.toString()));
 			TTRField otherfield = (TTRField) goalttr.getRecord().get(new TTRLabel(mapping.get(var).toString()));
-			// extra points for internal stuff in manifest fields
-			if (myfield.getType() != null) {
-
-				// now if pred, deal with args
-				if (myfield.getType() instanceof PredicateArgumentFormula
-						&& (otherfield.getType() != null && otherfield.getType() instanceof PredicateArgumentFormula)) {
-					totalNodes++;
-					if (((PredicateArgumentFormula) myfield.getType()).getPredicate().equals(
-							((PredicateArgumentFormula) otherfield.getType()).getPredicate())) {
-						// TODO still might have incorrect pred.., should it just get nothing?
-						nodesMapped++; // get a point for getting right pred name or manifest value, will have been
-										// mapped from subsumption
-					} else {
-						// could just ignore this as wrong pred type?? or give some cred?
-						continue;
+			float score = fieldScore(myfield, otherfield, hypttr, goalttr);
+			totalMappedNodes += score;
+			fieldScoreMap.put(var, score);
+		}
+		logger.debug(fieldScoreMap); // doesn't include embedded rec types in this map, recursion
+		logger.debug(hypttr);
+		logger.debug(goalttr);
+		return totalMappedNodes;
+	}
+
+	/**
+	 * @param myfield
+	 *            a field of hypttr
+	 * @param otherfield
+	 *            a field of goalttr
+	 * @return the points for mapping myfield to otherfield (see {@link #totalNodesMapped(TTRRecordType, TTRRecordType)}):
+	 *         the proportion of the nodes of otherfield myfield gets right, plus the nodes mapped within them if they're
+	 *         embedded record types
+	 */
+	protected float fieldScore(TTRField myfield, TTRField otherfield, TTRRecordType hypttr, TTRRecordType goalttr) {
+		float embedded = 0; // nodes mapped in embedded record types
+		int nodesMapped = 0; // will do a simple calc over each one
+		int totalNodes = 0; // will do a simple calc over each one
+		nodesMapped++;
+		totalNodes++; // every mapped field gets one point
+		// extra points for internal stuff in manifest fields
+		if (myfield.getType() != null) {
+
+			// now if pred, deal with args
+			if (myfield.getType() instanceof PredicateArgumentFormula
+					&& (otherfield.getType() != null && otherfield.getType() instanceof PredicateArgumentFormula)) {
+				totalNodes++;
+				if (((PredicateArgumentFormula) myfield.getType()).getPredicate().equals(
+						((PredicateArgumentFormula) otherfield.getType()).getPredicate())) {
+					// TODO still might have incorrect pred.., should it just get nothing?
+					nodesMapped++; // get a point for getting right pred name or manifest value, will have been
+									// mapped from subsumption
+				} else {
+					// could just ignore this as wrong pred type?? or give some cred?
+					return 0;
+				}
+
+				List<Formula> args = ((PredicateArgumentFormula) myfield.getType()).getArguments();
+				List<Formula> otherargs = ((PredicateArgumentFormula) otherfield.getType()).getArguments();
+				totalNodes += otherargs.size(); // possible max score of all target arguments, not quite, extras,
+												// below for subsumption
+				argloop: for (int a = 0; a < args.size(); a++) {
+					if (a >= otherargs.size()) {
+						// TODO doesn't get punished for having more args...
+						// could still get more points for paths
+						continue argloop;
 					}
+					// has to be in right position to get the point i.e. mapping args(a) = otherargs(a)
+					//TODO reftime any other path name doesn't work
+					if ((args.get(a).toString().contains(".") || (args.get(a).toString().startsWith("r")&&args.get(a).toString().length()<3))
+							&& (otherargs.get(a).toString().contains(".") || (otherargs.get(a).toString().startsWith("r"))&&otherargs.get(a).toString().length()<3)) { // path
+						logger.debug("both paths or restrictors");
+						// both will be embedded RTs, so let's get those
+						String myPathString = !args.get(a).toString().contains(".") ? "." + args.get(a).toString()
+								: args.get(a).toString();
+						String otherPathString = !otherargs.get(a).toString().contains(".") ? "."
+								+ otherargs.get(a).toString() : otherargs.get(a).toString();
+						logger.debug("both now paths  " + myPathString + " and " + otherPathString);
+						TTRRelativePath mypath = (TTRRelativePath) TTRPath.parse(myPathString);
+						TTRRelativePath otherPath = (TTRRelativePath) TTRPath.parse(otherPathString);
+						// check whether one susumes t'other?
+						logger.debug(hypttr);
+						logger.debug(goalttr);
+						mypath.setParentRecType(hypttr);
+						otherPath.setParentRecType(goalttr);
+						// TODO At the moment, no points for common start of path if result doesn't strictly subsume
+						// we do have points for number of sub-paths subsuming though:
+						logger.debug("mypath" + mypath.getMinimalSuperTypeWith());
+						logger.debug("otherpath" + otherPath.getMinimalSuperTypeWith());
+						totalNodes += otherPath.getLabels().size() - 1; // extra for length of path on top of extra
+
+						if (mypath.getLabels().size() > otherPath.getLabels().size()
+								|| !otherPath.getMinimalSuperTypeWith().subsumes(mypath.getMinimalSuperTypeWith())) {
+							continue argloop; // doesn't subsume, size mismatch
+						} else {
+							nodesMapped++; // one for the arg subsuming
+							nodesMapped += mypath.getLabels().size() - 1; // how deep the path is
+						}
 
-					List<Formula> args = ((PredicateArgumentFormula) myfield.getType()).getArguments();
-					List<Formula> otherargs = ((PredicateArgumentFormula) otherfield.getType()).getArguments();
-					totalNodes += otherargs.size(); // possible max score of all target arguments, not quite, extras,
-													// below for subsumption
-					argloop: for (int a = 0; a < args.size(); a++) {
-						if (a >= otherargs.size()) {
-							// TODO doesn't get punished for having more args...
-							// could still get more points for paths
+					} else {
+						TTRLabel myArg = new TTRLabel(args.get(a).toString());
+						TTRLabel otherArg = new TTRLabel(otherargs.get(a).toString());
+						//System.out.println(myArg);
+						//System.out.println(otherArg);
+						// make sure the labels return fields first..
+						//TODO for robust version:
+						if (!hypttr.getRecord().containsKey(myArg)&&!goalttr.getRecord().containsKey(otherArg)){
 							continue argloop;
 						}
-						// has to be in right position to get the point i.e. mapping args(a) = otherargs(a)
-						//TODO reftime any other path name doesn't work
-						if ((args.get(a).toString().contains(".") || (args.get(a).toString().startsWith("r")&&args.get(a).toString().length()<3))
-								&& (otherargs.get(a).toString().contains(".") || (otherargs.get(a).toString().startsWith("r"))&&otherargs.get(a).toString().length()<3)) { // path
-							logger.debug("both paths or restrictors");
-							// both will be embedded RTs, so let's get those
-							String myPathString = !args.get(a).toString().contains(".") ? "." + args.get(a).toString()
-									: args.get(a).toString();
-							String otherPathString = !otherargs.get(a).toString().contains(".") ? "."
-									+ otherargs.get(a).toString() : otherargs.get(a).toString();
-							logger.debug("both now paths  " + myPathString + " and " + otherPathString);
-							TTRRelativePath mypath = (TTRRelativePath) TTRPath.parse(myPathString);
-							TTRRelativePath otherPath = (TTRRelativePath) TTRPath.parse(otherPathString);
-							// check whether one susumes t'other?
-							logger.debug(hypttr);
-							logger.debug(goalttr);
-							mypath.setParentRecType(hypttr);
-							otherPath.setParentRecType(goalttr);
-							// TODO At the moment, no points for common start of path if result doesn't strictly subsume
-							// we do have points for number of sub-paths subsuming though:
-							logger.debug("mypath" + mypath.getMinimalSuperTypeWith());
-							logger.debug("otherpath" + otherPath.getMinimalSuperTypeWith());
-							totalNodes += otherPath.getLabels().size() - 1; // extra for length of path on top of extra
-
-							if (mypath.getLabels().size() > otherPath.getLabels().size()
-									|| !otherPath.getMinimalSuperTypeWith().subsumes(mypath.getMinimalSuperTypeWith())) {
-								continue argloop; // doesn't subsume, size mismatch
-							} else {
-								nodesMapped++; // one for the arg subsuming
-								nodesMapped += mypath.getLabels().size() - 1; // how deep the path is
-							}
-
-						} else {
-							TTRLabel myArg = new TTRLabel(args.get(a).toString());
-							TTRLabel otherArg = new TTRLabel(otherargs.get(a).toString());
-							//System.out.println(myArg);
-							//System.out.println(otherArg);
-							// make sure the labels return fields first..
-							//TODO for robust version:
-							if (!hypttr.getRecord().containsKey(myArg)&&!goalttr.getRecord().containsKey(otherArg)){
-								continue argloop;
-							}
-							if ((((TTRField) hypttr.getRecord().get(myArg))).subsumes((((TTRField) goalttr.getRecord()
-									.get(otherArg))))) {
-								logger.debug(args.get(a).toString() + "subsumes!");
-								nodesMapped++;
-							}
+						if (subsumes(hypttr.getRecord().get(myArg), goalttr.getRecord().get(otherArg))) {
+							logger.debug(args.get(a).toString() + "subsumes!");
+							nodesMapped++;
 						}
 					}
-				} else if (myfield.getType() instanceof TTRRecordType
-						&& (otherfield.getType() != null && otherfield.getType() instanceof TTRRecordType)) {
-					logger.debug("part of embedded " + myfield.getType() + " and " + otherfield.getType());
-					nodesMapped += totalNodesMapped(((TTRRecordType) myfield.getType()),
-							((TTRRecordType) otherfield.getType()));
-					totalNodes += totalNodesMapped(((TTRRecordType) otherfield.getType()),
-							((TTRRecordType) otherfield.getType()));
-					totalMappedNodes += totalNodesMapped(((TTRRecordType) myfield.getType()),
-							((TTRRecordType) otherfield.getType()));// add to total too..
-				} else { 
-					// should just be atomic or head..
-					if (myfield.getLabel().equals(new TTRLabel("head"))&&myfield.getLabel().equals(new TTRLabel("head"))){
-						TTRLabel hyphead = new TTRLabel(myfield.getType().toString());
-						TTRLabel goalhead = otherfield.getType()==null ? otherfield.getLabel() : new TTRLabel(otherfield.getType().toString());
-						if (hypttr.getRecord().get(hyphead)!=null&&goalttr.getRecord().get(goalhead)!=null){
-							if (hypttr.getRecord().get(hyphead).subsumes(goalttr.getRecord().get(goalhead))){
-								nodesMapped++;
-							}
+				}
+			} else if (myfield.getType() instanceof TTRRecordType
+					&& (otherfield.getType() != null && otherfield.getType() instanceof TTRRecordType)) {
+				logger.debug("part of embedded " + myfield.getType() + " and " + otherfield.getType());
+				nodesMapped += totalNodesMapped(((TTRRecordType) myfield.getType()),
+						((TTRRecordType) otherfield.getType()));
+				totalNodes += totalNodesMapped(((TTRRecordType) otherfield.getType()),
+						((TTRRecordType) otherfield.getType()));
+				embedded += totalNodesMapped(((TTRRecordType) myfield.getType()),
+						((TTRRecordType) otherfield.getType()));// add to total too..
+			} else { 
+				// should just be atomic or head..
+				if (myfield.getLabel().equals(new TTRLabel("head"))&&myfield.getLabel().equals(new TTRLabel("head"))){
+					TTRLabel hyphead = new TTRLabel(myfield.getType().toString());
+					TTRLabel goalhead = otherfield.getType()==null ? otherfield.getLabel() : new TTRLabel(otherfield.getType().toString());
+					if (hypttr.getRecord().get(hyphead)!=null&&goalttr.getRecord().get(goalhead)!=null){
+						if (subsumes(hypttr.getRecord().get(hyphead), goalttr.getRecord().get(goalhead))){
+							nodesMapped++;
 						}
-						
-					} else if (myfield.getType().equals(otherfield.getType())) {
-						nodesMapped++;
 					}
-					totalNodes++;
+					
+				} else if (myfield.getType().equals(otherfield.getType())) {
+					nodesMapped++;
 				}
-			} else if (otherfield.getType() != null) {
-				// TODO give half marks, or less, by considering all the other stucture?
-				// more possible total nodes here:
-				totalNodes++; // gets another one for sure
-				if (otherfield.getType() instanceof PredicateArgumentFormula) {
-
-					for (Formula v : ((PredicateArgumentFormula) otherfield.getType()).getArguments()) {
-						totalNodes++; // one for each arg, some more for paths
-						if (v.toString().contains(".")) {
-							totalNodes += ((TTRRelativePath) TTRRelativePath.parse(v.toString())).getLabels().size() - 1;
-						}
+				totalNodes++;
+			}
+		} else if (otherfield.getType() != null) {
+			// TODO give half marks, or less, by considering all the other stucture?
+			// more possible total nodes here:
+			totalNodes++; // gets another one for sure
+			if (otherfield.getType() instanceof PredicateArgumentFormula) {
+
+				for (Formula v : ((PredicateArgumentFormula) otherfield.getType()).getArguments()) {
+					totalNodes++; // one for each arg, some more for paths
+					if (v.toString().contains(".")) {
+						totalNodes += ((TTRRelativePath) TTRRelativePath.parse(v.toString())).getLabels().size() - 1;
 					}
 				}
 			}
-			logger.debug("field total mapped " + nodesMapped); // would we do p + r for each in instead?
-			logger.debug("field total possible " + totalNodes); // now normalise
-			totalMappedNodes += ((float) (((float) nodesMapped) / ((float) totalNodes)));
-			fieldScoreMap.put(var, ((float) (((float) nodesMapped) / ((float) totalNodes))));
 		}
-		logger.debug(fieldScoreMap); // doesn't include embedded rec types in this map, recursion
-		logger.debug(hypttr);
-		logger.debug(goalttr);
-		return totalMappedNodes;
+		logger.debug("field total mapped " + nodesMapped); // would we do p + r for each in instead?
+		logger.debug("field total possible " + totalNodes); // now normalise
+		return embedded + ((float) nodesMapped) / ((float) totalNodes);
 	}
 
 	public static void pause() {
@@ -507,6 +556,17 @@ public class Evaluation {
 		}
 	}
 
+	/**
+	 * Pauses on a problem, as this used to, unless pairs are evaluated on several threads: a pool thread waiting for
+	 * enter would hold up the rest, so the problem is just logged.
+	 */
+	private void pauseIfSequential() {
+		if (threads <= 1) {
+			pause();
+			pause();
+		}
+	}
+
 
 	/**
 	 * Simple average of all precisionRecallFScore
@@ -518,38 +578,46 @@ public class Evaluation {
 		float overallMassPrecision = 0;
 		float overallMassRecall = 0;
 		float overallMassFScore = 0;
-		for (TTRRecordType[] pair : mylist) {
-			TTRRecordType hypttr = pair[0];
-			TTRRecordType goalttr = pair[1];
-			//logger.info("checking " + hypttr + " verses " + goalttr);
-			if (hypttr==null)
-				hypttr = TTRRecordType.parse("[]");
-			if (goalttr==null)
-				goalttr = TTRRecordType.parse("[]");
-			try {
-				// AA Could have used removeHeadIfManifest (instead of re-doing it) here, but it's not a big deal I guess...
-				TTRLabel head = new TTRLabel("head");  // dehead manifest heads
-				if (hypttr.getRecord().containsKey(head) && hypttr.getRecord().get(head).getType()!=null)
-					hypttr = removeLabel(hypttr, head);
-				if (goalttr.getRecord().containsKey(head) && goalttr.getRecord().get(head).getType()!=null)
-					goalttr = removeLabel(goalttr, head);
-				EvaluationResult pr = precisionRecall(hypttr, goalttr);
-				// AA: Debugging info
-				logger.debug("Eval scores for " + hypttr + " and " + goalttr + " are:");
-				logger.debug("precision = " + pr.getPrecision());
-				logger.debug("recall = " + pr.getRecall());
-				logger.debug("f-score = " + pr.getFScore());
-
-				overallMassPrecision+=  pr.getPrecision();
-				overallMassRecall+= pr.getRecall();
-				overallMassFScore+= pr.getFScore();
-				//pause();
-				
-			} catch (Exception e) {
-				logger.error("COULD not evaluate " + hypttr + " and " + goalttr);
-				pause();
-				pause();
-			}
+		List<Callable<EvaluationResult>> tasks = new ArrayList<Callable<EvaluationResult>>();
+		for (final TTRRecordType[] pair : mylist) {
+			tasks.add(new Callable<EvaluationResult>() {
+				public EvaluationResult call() {
+					TTRRecordType hypttr = pair[0];
+					TTRRecordType goalttr = pair[1];
+					//logger.info("checking " + hypttr + " verses " + goalttr);
+					if (hypttr==null)
+						hypttr = TTRRecordType.parse("[]");
+					if (goalttr==null)
+						goalttr = TTRRecordType.parse("[]");
+					try {
+						// AA Could have used removeHeadIfManifest (instead of re-doing it) here, but it's not a big deal I guess...
+						TTRLabel head = new TTRLabel("head");  // dehead manifest heads
+						if (hypttr.getRecord().containsKey(head) && hypttr.getRecord().get(head).getType()!=null)
+							hypttr = removeLabel(hypttr, head);
+						if (goalttr.getRecord().containsKey(head) && goalttr.getRecord().get(head).getType()!=null)
+							goalttr = removeLabel(goalttr, head);
+						EvaluationResult pr = precisionRecall(hypttr, goalttr);
+						// AA: Debugging info
+						logger.debug("Eval scores for " + hypttr + " and " + goalttr + " are:");
+						logger.debug("precision = " + pr.getPrecision());
+						logger.debug("recall = " + pr.getRecall());
+						logger.debug("f-score = " + pr.getFScore());
+						return pr;
+					} catch (Exception e) {
+						logger.error("COULD not evaluate " + hypttr + " and " + goalttr, e);
+						pauseIfSequential();
+						return null;
+					}
+				}
+			});
+		}
+		// summed in list order, so the result doesn't depend on the number of threads
+		for (EvaluationResult pr : runAll(tasks)) {
+			if (pr == null)
+				continue;
+			overallMassPrecision+=  pr.getPrecision();
+			overallMassRecall+= pr.getRecall();
+			overallMassFScore+= pr.getFScore();
 		}
 		List<Float> result = new ArrayList<Float>();
 		float precision = overallMassPrecision / ((float) mylist.size());
@@ -577,30 +645,41 @@ public class Evaluation {
 		float overallGoalNodes = 0;
 		float overallNodesMapped = 0;
 
-		for (TTRRecordType[] pair : mylist) {
-			TTRRecordType hypttr = pair[0];
-			TTRRecordType goalttr = pair[1];
-			logger.info("checking " + hypttr + " verses " + goalttr);
-			try {
-				TTRLabel head = new TTRLabel("head"); //dehead manifest heads
-				if (hypttr.getRecord().containsKey(head)&&
-						hypttr.getRecord().get(head).getType()!=null){
-					hypttr = removeLabel(hypttr,head);
-				}
-				if (goalttr.getRecord().containsKey(head)&&
-						goalttr.getRecord().get(head).getType()!=null){
-					goalttr = removeLabel(goalttr,head);
+		List<Callable<float[]>> tasks = new ArrayList<Callable<float[]>>();
+		for (final TTRRecordType[] pair : mylist) {
+			tasks.add(new Callable<float[]>() {
+				public float[] call() {
+					TTRRecordType hypttr = pair[0];
+					TTRRecordType goalttr = pair[1];
+					logger.info("checking " + hypttr + " verses " + goalttr);
+					try {
+						TTRLabel head = new TTRLabel("head"); //dehead manifest heads
+						if (hypttr.getRecord().containsKey(head)&&
+								hypttr.getRecord().get(head).getType()!=null){
+							hypttr = removeLabel(hypttr,head);
+						}
+						if (goalttr.getRecord().containsKey(head)&&
+								goalttr.getRecord().get(head).getType()!=null){
+							goalttr = removeLabel(goalttr,head);
+						}
+						return new float[] { totalNodesMapped(hypttr, hypttr),
+								totalNodesMapped(goalttr, goalttr), // fieldTotal(goalttr);
+								totalNodesMapped(hypttr, goalttr) };
+
+					} catch (Exception e) {
+						logger.error("Could NOT do MICRO P and R on " + hypttr + " and " + goalttr, e);
+						pauseIfSequential();
+						return null;
+					}
 				}
-				overallTotalNodes += totalNodesMapped(hypttr, hypttr);
-				overallGoalNodes += totalNodesMapped(goalttr, goalttr); // fieldTotal(goalttr);
-				overallNodesMapped += totalNodesMapped(hypttr, goalttr);
-
-			} catch (Exception e) {
-				logger.error("Could NOT do MICRO P and R on " + hypttr + " and " + goalttr);
-				pause();
-				pause();
-			}
-
+			});
+		}
+		for (float[] nodes : runAll(tasks)) {
+			if (nodes == null)
+				continue;
+			overallTotalNodes += nodes[0];
+			overallGoalNodes += nodes[1];
+			overallNodesMapped += nodes[2];
 		}
 		logger.info("OVERALL MICRO precision results: ");
 		EvaluationResult res = new EvaluationResult(overallTotalNodes, overallGoalNodes, overallNodesMapped);
@@ -611,6 +690,35 @@ public class Evaluation {
 
 	}
 
+	/**
+	 * Runs tasks on {@link #threads} threads, or in this one if that's 1
+	 * 
+	 * @param tasks
+	 * @return their results, in the same order
+	 */
+	private <T> List<T> runAll(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>();
+		try {
+			if (threads <= 1 || tasks.size() <= 1) {
+				for (Callable<T> task : tasks)
+					results.add(task.call());
+				return results;
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+			try {
+				for (Future<T> f : executor.invokeAll(tasks))
+					results.add(f.get());
+			} finally {
+				executor.shutdownNow();
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
 	/**
 	 * Calculates eval metrics based on number of fields mappable to goalTTR
 	 * @param hypttr The hypothesised RT
@@ -631,8 +739,7 @@ public class Evaluation {
 			logger.warn("field total goalttr" + (float) fieldTotal(goalttr));
 			logger.warn(hypttr);
 			logger.warn(goalttr);
-			pause();
-			pause();
+			pauseIfSequential();
 		}
 		EvaluationResult res = new EvaluationResult(totalNodes, goalNodes, nodesMapped);
 		logger.debug("precision = " + res.getPrecision());
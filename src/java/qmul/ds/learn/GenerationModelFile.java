@@ -0,0 +1,186 @@
+package qmul.ds.learn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import qmul.ds.formula.TTRRecordType;
+import qmul.ds.type.DSType;
+
+/**
+ * Compact binary format for the generation model learned by {@link GeneratorLearner} and used by
+ * {@link qmul.ds.InteractiveProbabilisticGenerator}: the feature table, encoded once, then the vocabulary, then one
+ * contiguous row of doubles per word (the log prob of each feature given the word, in feature table order).
+ *
+ * <pre>
+ * int magic, int version
+ * int #features, then per feature: byte kind, string
+ * int #words, then per word: string
+ * #words x #features doubles
+ * </pre>
+ *
+ * Strings are an int byte length followed by UTF-8. Written with a single buffered channel, read by memory mapping the
+ * file, so loading a model doesn't go through text parsing of every row as the csv format does.
+ *
+ * @author Arash
+ *
+ */
+public class GenerationModelFile {
+
+    protected static Logger logger = Logger.getLogger(GenerationModelFile.class);
+
+    public static final int MAGIC = 0x4453474d; // DSGM
+    public static final int VERSION = 1;
+
+    private static final byte SEMANTIC = 0;
+    private static final byte DS_TYPE = 1;
+    private static final byte DS_TYPE_REQUIREMENT = 2;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public final Feature[] features;
+    public final String[] words;
+    /**
+     * weights[i][j] is the entry for words[i], features[j]
+     */
+    public final double[][] weights;
+
+    public GenerationModelFile(Feature[] features, String[] words, double[][] weights) {
+        this.features = features;
+        this.words = words;
+        this.weights = weights;
+    }
+
+    /**
+     * Writes the model to file, overwriting it if it exists
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+
+            buffer.putInt(features.length);
+            for (Feature f : features) {
+                buffer = ensure(channel, buffer, 1);
+                buffer.put(kind(f));
+                buffer = putString(channel, buffer, f.toString());
+            }
+
+            buffer = ensure(channel, buffer, 4);
+            buffer.putInt(words.length);
+            for (String w : words)
+                buffer = putString(channel, buffer, w);
+
+            for (double[] row : weights) {
+                for (double p : row) {
+                    buffer = ensure(channel, buffer, 8);
+                    buffer.putDouble(p);
+                }
+            }
+            flush(channel, buffer);
+        }
+        logger.info("Wrote model with " + words.length + " words and " + features.length + " features to " + file);
+    }
+
+    /**
+     * @param file
+     * @return the model in file
+     * @throws IOException
+     *             if file can't be read or isn't a model file
+     */
+    public static GenerationModelFile read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC)
+                throw new IOException(file + " is not a generation model file");
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported generation model version " + version + " in " + file);
+
+            Feature[] features = new Feature[buffer.getInt()];
+            for (int j = 0; j < features.length; j++) {
+                byte kind = buffer.get();
+                String s = getString(buffer);
+                switch (kind) {
+                case SEMANTIC:
+                    features[j] = new Feature(TTRRecordType.parse(s));
+                    break;
+                case DS_TYPE:
+                    features[j] = new Feature(DSType.parse(s));
+                    break;
+                case DS_TYPE_REQUIREMENT:
+                    // toString() of a requirement feature is ?type
+                    features[j] = new Feature(DSType.parse(s.substring(1)), true);
+                    break;
+                default:
+                    throw new IOException("Unknown feature kind " + kind + " in " + file);
+                }
+            }
+
+            String[] words = new String[buffer.getInt()];
+            for (int i = 0; i < words.length; i++)
+                words[i] = getString(buffer);
+
+            double[][] weights = new double[words.length][features.length];
+            DoubleBuffer rows = buffer.slice().asDoubleBuffer();
+            for (double[] row : weights)
+                rows.get(row);
+
+            return new GenerationModelFile(features, words, weights);
+        }
+    }
+
+    private static byte kind(Feature f) {
+        if (f.rt != null)
+            return SEMANTIC;
+        return f.isRequirement ? DS_TYPE_REQUIREMENT : DS_TYPE;
+    }
+
+    private static ByteBuffer putString(FileChannel channel, ByteBuffer buffer, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer = ensure(channel, buffer, 4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Flushes buffer to channel if it has less than n bytes left, growing it if n is larger than its capacity
+     *
+     * @return the buffer to carry on writing to
+     */
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer buffer, int n) throws IOException {
+        if (buffer.remaining() >= n)
+            return buffer;
+        flush(channel, buffer);
+        if (buffer.capacity() < n)
+            return ByteBuffer.allocate(n);
+        return buffer;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+}
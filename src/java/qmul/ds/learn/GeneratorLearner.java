@@ -8,6 +8,10 @@ package qmul.ds.learn;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 
 import edu.stanford.nlp.ling.Sentence;
@@ -16,6 +20,8 @@ import edu.stanford.nlp.util.Pair;
 
 import org.apache.log4j.Logger;
 import qmul.ds.*;
+import qmul.ds.action.atomic.EffectFactory;
+import qmul.ds.action.meta.MetaElement;
 import qmul.ds.dag.*;
 import qmul.ds.formula.*;
 import qmul.ds.tree.Node;
@@ -42,12 +48,17 @@ public class GeneratorLearner {
     static final Double K_SMOOTHING = 0.01;
     static final boolean LOG_PROB = true;
     static final boolean useDSTypes = true;
+    static final boolean EXPORT_CSV = true; // also write the model as csv, alongside the binary model file
 
     // copied from: core/src/babble/dialog/rl/TTRMDPStateEncoding.java
     // Semantic features of the goal, i.e. the grounded content, that are to be tracked by the mdp
     protected TreeSet<Feature> features = new TreeSet<>();//Collections.reverseOrder());  // AA: Shouldn't this be "new List<xxx>(); ? what's the difference?" because in your code it was null, and I changed it since I  was getting an error.
     protected HashMap<String, Integer> wordsCountMap = new HashMap<>(); // todo check for the usage
 
+    protected String parserPath = null; // to create a parser per worker; null if we were given a parser
+    protected int threads = Runtime.getRuntime().availableProcessors();
+    protected boolean goalDirected = false; // prune parses against the gold semantics at every word, see parseToGoal
+
     protected static Logger logger = Logger.getLogger(GeneratorLearner.class);
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_GREEN = "\u001B[32m";
@@ -82,9 +93,28 @@ public class GeneratorLearner {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        this.parserPath = parserPath;
         this.parser = new InteractiveContextParser(parserPath);
     }
 
+    /**
+     * @param threads
+     *            the number of workers to parse the corpus with in {@link #learn()}. Only used if constructed from a
+     *            parser path.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param goalDirected
+     *            if true, {@link #learn()} parses each sentence with its gold semantics as a goal, cutting branches that
+     *            can't reach it at every word, instead of parsing exhaustively and checking complete parses afterwards
+     */
+    public void setGoalDirected(boolean goalDirected) {
+        this.goalDirected = goalDirected;
+    }
+
     // ====================== methods ======================
 
     /**
@@ -154,14 +184,26 @@ public class GeneratorLearner {
      * @return state
      */
     public List<TTRRecordType> mapFeatures(TTRFormula rInc) { //todo -------------------------------- only ttr
-        List<TTRRecordType> mappedFeatures = new ArrayList<>();
-        HashMap<Variable, Variable> map = new HashMap<>();
-        logger.trace(rInc);
         ArrayList<TTRRecordType> onlySemanticsFeatures = new ArrayList<>();
         for (Feature feature : features) {
             if (feature.rt != null)
                 onlySemanticsFeatures.add(feature.rt);
         }
+        return mapFeatures(rInc, onlySemanticsFeatures);
+    }
+
+
+    /**
+     * As {@link #mapFeatures(TTRFormula)}, over the given semantic features rather than those in the table
+     *
+     * @param rInc
+     * @param onlySemanticsFeatures
+     * @return the features mapped
+     */
+    public List<TTRRecordType> mapFeatures(TTRFormula rInc, List<TTRRecordType> onlySemanticsFeatures) {
+        List<TTRRecordType> mappedFeatures = new ArrayList<>();
+        HashMap<Variable, Variable> map = new HashMap<>();
+        logger.trace(rInc);
 
         for (TTRRecordType feature : onlySemanticsFeatures) {
             feature.resetMetas();
@@ -299,61 +341,71 @@ public class GeneratorLearner {
 
 
     /**
-     * Writes the conditionalProbTable to a csv file.
+     * Writes the conditionalProbTable to the binary model file (see {@link GenerationModelFile}), and to a csv file too
+     * if EXPORT_CSV is set. The csv is written first, since the generator only loads the binary file if it is at least
+     * as new as the csv.
      *
-     * @throws FileNotFoundException
      * @throws IOException
      */
-    public void saveModelToFile()
-            throws FileNotFoundException, IOException // eclipse recommended it so I said yes.
-    {
-        // TODO Make more efficient
-        // First, clear the file if it was already there. RF: https://stackoverflow.com/questions/6994518/how-to-delete-the-content-of-text-file-without-deleting-itself
-        File f = new File(grammarPath + "genLearnedModel.csv");
-        if (f.exists() && !f.isDirectory()) {
-            PrintWriter writer = new PrintWriter(f);
-            writer.print("");
-            writer.close();
+    public void saveModelToFile() throws IOException {
+        if (EXPORT_CSV)
+            saveModelToCSV();
+
+        Feature[] featureArray = features.toArray(new Feature[0]);
+        String[] words = conditionalProbTable.keySet().toArray(new String[0]);
+        double[][] weights = new double[words.length][featureArray.length];
+        for (int i = 0; i < words.length; i++) {
+            TreeMap<Feature, Double> row = conditionalProbTable.get(words[i]);
+            for (int j = 0; j < featureArray.length; j++)
+                weights[i][j] = row.get(featureArray[j]);
         }
-        // Writing features row
-        ArrayList<String> featuresStr = new ArrayList<String>();
-
-        for (Feature feature : features) // todo make this more efficient
-            featuresStr.add(feature.toString());
-
-        String strFeatures = String.join(" , ", featuresStr);
-        strFeatures = "[WORDS\\FEATURES]" + " , " + strFeatures + "\n";
-        FileWriter writer1 = new FileWriter(grammarPath + "genLearnedModel.csv", true);
-        writer1.write(strFeatures);
-        writer1.close();
-
-        // Writing words and probs
-        int row_num = 0;
-        for (String word : conditionalProbTable.keySet()) { // REF: https://stackoverflow.com/questions/46898/how-do-i-efficiently-iterate-over-each-entry-in-a-java-map
-            ArrayList<String> probsStr = new ArrayList<>();
-            TreeMap<Feature, Double> row = conditionalProbTable.get(word);
-            for (Feature feature : features) {
-                Double prob = row.get(feature);
-                probsStr.add(Double.toString(prob));
-            }
+        new GenerationModelFile(featureArray, words, weights).write(new File(grammarPath + "genLearnedModel.bin"));
+        System.out.println("Model saved successfully.");
+    }
 
-            // Converts the list to a string joined by comma
-            String strRow = String.join(" , ", probsStr); //REF: https://mkyong.com/java/java-how-to-join-list-string-with-commas/
-            strRow = word + " , " + strRow;
-            // write to file
-            try {
-                FileWriter writer = new FileWriter(grammarPath + "genLearnedModel.csv", true);
-                writer.write(strRow);
-                writer.write(System.lineSeparator()); // To go to next line. REF: https://stackoverflow.com/questions/18549704/create-a-new-line-in-javas-filewriter
-                writer.close();
-                logger.trace("Successfully wrote row " + row_num + " to the file."); // todo add logs
-                row_num++;
-            } catch (IOException e) {
-                System.out.println("An error occurred."); // todo better message (could not write row x to file.)
-                e.printStackTrace();
+
+    /**
+     * Writes the conditionalProbTable to a csv file, overwriting it if it exists.
+     *
+     * @throws IOException
+     */
+    public void saveModelToCSV() throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(grammarPath + "genLearnedModel.csv", false))) {
+            // Writing features row
+            ArrayList<String> featuresStr = new ArrayList<String>();
+            for (Feature feature : features)
+                featuresStr.add(feature.toString());
+
+            writer.write("[WORDS\\FEATURES]" + " , " + String.join(" , ", featuresStr) + "\n");
+
+            // Writing words and probs
+            for (String word : conditionalProbTable.keySet()) {
+                TreeMap<Feature, Double> row = conditionalProbTable.get(word);
+                writer.write(word);
+                for (Feature feature : features) {
+                    writer.write(" , ");
+                    writer.write(Double.toString(row.get(feature)));
+                }
+                writer.write(System.lineSeparator());
             }
         }
-        System.out.println("Model saved successfully.");
+        logger.trace("Wrote " + conditionalProbTable.size() + " rows to csv.");
+    }
+
+
+    /**
+     * A parser for a counting worker of {@link #learn()}, which must be called on the worker's thread. Rule specs
+     * share metavariables by name, and the fresh variable counters are static, so the thread first gets its own
+     * metavariable pool and counters: the worker's parser then shares nothing with the others, and its variable
+     * numbering doesn't depend on how the workers are scheduled.
+     */
+    private InteractiveContextParser newWorkerParser() {
+        MetaElement.usePrivatePool();
+        Variable.usePrivatePools();
+        // lexicon loading goes through the static macro templates of EffectFactory
+        synchronized (EffectFactory.class) {
+            return new InteractiveContextParser(parserPath);
+        }
     }
 
 
@@ -372,11 +424,141 @@ public class GeneratorLearner {
         initialiseCountTable();
         logger.info("features length: " + features.size());
         logger.info("table features: " + features);
-        for (Pair<Sentence<Word>, TTRRecordType> pair : corpus) {
+
+        // repeated examples are parsed once, and counted as many times as they occur
+        List<RecordTypeCorpus.CountedExample> pairs = corpus.getDistinctExamples();
+
+        // each worker needs its own parser, so can only go parallel if we know how to make one
+        int workers = (parserPath == null) ? 1 : Math.max(1, Math.min(threads, pairs.size()));
+        List<CountTable> partials = new ArrayList<>();
+        if (workers == 1) {
+            partials.add(count(parser, pairs, semanticFeatures()));
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            List<Future<CountTable>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                List<RecordTypeCorpus.CountedExample> partition = pairs.subList(i * pairs.size() / workers,
+                        (i + 1) * pairs.size() / workers);
+                // mapFeatures resets metas on the features, so each worker gets its own copies
+                List<TTRRecordType> semanticFeatures = semanticFeatures();
+                futures.add(executor.submit(() -> count(newWorkerParser(), partition, semanticFeatures)));
+            }
+            try {
+                for (Future<CountTable> future : futures)
+                    partials.add(future.get());
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException("Learning failed in worker: " + e.getMessage(), e);
+            } finally {
+                executor.shutdown();
+            }
+            logger.info("Counted " + pairs.size() + " distinct pairs with " + workers + " workers");
+        }
+
+        // merge in partition order, so the table doesn't depend on which worker finished first
+        for (CountTable partial : partials)
+            merge(partial);
+
+        normaliseCountTable();
+        System.out.println(features);
+        saveModelToFile();
+    }
+
+
+    /**
+     * @return copies of the semantic features in the table, in table order
+     */
+    protected List<TTRRecordType> semanticFeatures() {
+        List<TTRRecordType> result = new ArrayList<>();
+        for (Feature feature : features)
+            if (feature.rt != null)
+                result.add(feature.rt.clone());
+        return result;
+    }
+
+
+    /**
+     * Word/feature counts from part of the corpus, only for the entries that were seen. DS type features are recorded
+     * separately, to be added to the table before merging.
+     */
+    protected static class CountTable {
+        final TreeMap<String, TreeMap<Feature, Double>> counts = new TreeMap<>();
+        final TreeSet<Feature> dsTypeFeatures = new TreeSet<>();
+
+        void increment(String word, Feature f, int n) {
+            TreeMap<Feature, Double> row = counts.get(word);
+            if (row == null) {
+                row = new TreeMap<>();
+                counts.put(word, row);
+            }
+            row.put(f, row.getOrDefault(f, 0.0) + n);
+        }
+    }
+
+
+    /**
+     * Parses sentence word by word, keeping only the branches whose semantics still subsume the gold semantics rG
+     * after each word (as in generation), so parses that can't end up at rG are cut as soon as they diverge rather
+     * than being enumerated to the end.
+     *
+     * @param parser
+     * @param sentence
+     * @param rG
+     * @return true if the whole sentence could be parsed consistently with rG
+     */
+    protected boolean parseToGoal(DAGParser<? extends DAGTuple, ? extends DAGEdge> parser, Sentence<Word> sentence,
+            TTRRecordType rG) {
+        TTRFormula goal = rG.removeHead(); // goal is headless, as in generation
+        for (UtteredWord w : new Utterance(sentence).getWords()) {
+            UtteredWord word = new UtteredWord(w.word().toLowerCase(), w.speaker());
+            if (parser.generateWord(word, goal) == null) {
+                logger.debug("No parse of '" + word + "' consistent with " + goal + " in: " + sentence);
+                return false;
+            }
+            parser.getContext().appendWord(new UtteredWord(word));
+        }
+        return true;
+    }
+
+
+    /**
+     * Adds the counts in partial to conditionalCountTable, adding any new DS type features first.
+     *
+     * @param partial
+     */
+    protected void merge(CountTable partial) {
+        for (Feature f : partial.dsTypeFeatures)
+            if (!features.contains(f)) // checks if the pointedNodeFeature is already in the table to decide whether to add and initialise it or not.
+                addDSTypeFeature(f);
+
+        for (String word : partial.counts.keySet()) {
+            TreeMap<Feature, Double> row = conditionalCountTable.get(word);
+            TreeMap<Feature, Double> partialRow = partial.counts.get(word);
+            for (Feature f : partialRow.keySet())
+                row.put(f, row.get(f) + partialRow.get(f));
+        }
+    }
+
+
+    /**
+     * Parses the given pairs with parser and counts the word/feature co-occurrences along the correct parse of each,
+     * as many times as the pair occurs.
+     *
+     * @param parser
+     * @param pairs
+     * @param semanticFeatures
+     *            the semantic features to map rInc to, not shared with other workers
+     * @return the counts
+     */
+    protected CountTable count(DAGParser<? extends DAGTuple, ? extends DAGEdge> parser,
+            List<RecordTypeCorpus.CountedExample> pairs, List<TTRRecordType> semanticFeatures) {
+        CountTable table = new CountTable();
+        for (RecordTypeCorpus.CountedExample example : pairs) {
+            Pair<Sentence<Word>, TTRRecordType> pair = example.example;
             parser.init();  // Restarts parser.
             Sentence<Word> sentence = pair.first();
             TTRRecordType rG = pair.second();
-            Boolean parsed = parser.parseUtterance(new Utterance(sentence));  // Converting Sentence to Utterance to be able to parse it.
+            Boolean parsed = goalDirected ? parseToGoal(parser, sentence, rG)
+                    : parser.parseUtterance(new Utterance(sentence));  // Converting Sentence to Utterance to be able to parse it.
             while (parsed) {
                 TTRRecordType finalSem = (TTRRecordType) parser.getState().getCurrentTuple().getSemantics();
                 finalSem = finalSem.removeHeadIfManifest();
@@ -389,21 +571,14 @@ public class GeneratorLearner {
                     while (curEdge != null) {
                         // While the semantic features need to come from the parent of curTuple at this point, the syntactic features need to come from curTuple.
                         // This is because generation is conditioned both on the future (the goal) and the past (reflected in the current semantic tree).
-                        Feature pointedNodeFeature;
-//                        if (useDSTypes){
-//                            pointedNodeFeature = getPointedNodeAsFeature(curTuple);
-//                            if (!features.contains(pointedNodeFeature)) // checks if the pointedNodeFeature is already in the table to decide whether to add and initialise it or not.
-//                                addDSTypeFeature(pointedNodeFeature);
-//                        }
+                        Feature pointedNodeFeature = null;
                         String word = curEdge.word().word();
-//                        logger.debug(ANSI_YELLOW + "pointedNodeFeature: " + pointedNodeFeature + " _____ Current word: " + word + ANSI_RESET);
                         curTuple = dag.getParent(curTuple); // init to correct tuple, one before the last.
 
-                        // AA: NEWLY ADDED TO GET MOTHER NODE BASICALLY INSTEAD OF CURRENT NODE. copied from above. todo check for efficiency and modify respectively.
-                        if (useDSTypes){
+                        // AA: NEWLY ADDED TO GET MOTHER NODE BASICALLY INSTEAD OF CURRENT NODE.
+                        if (useDSTypes) {
                             pointedNodeFeature = getPointedNodeAsFeature(curTuple);
-                            if (!features.contains(pointedNodeFeature)) // checks if the pointedNodeFeature is already in the table to decide whether to add and initialise it or not.
-                                addDSTypeFeature(pointedNodeFeature);
+                            table.dsTypeFeatures.add(pointedNodeFeature);
                         }
                         logger.debug(ANSI_YELLOW + " Type of mother of pointed Node: " + pointedNodeFeature + " | Current word: " + word + ANSI_RESET);
 
@@ -411,27 +586,19 @@ public class GeneratorLearner {
                         rCur = rCur.removeHeadIfManifest();
                         TTRRecordType rInc = finalSem.subtract(rCur, new HashMap<>());
                         logger.trace("rG: " + finalSem + " MINUS rCur: " + rCur + " EQUALS rInc: " + rInc);
-                        TreeMap<Feature, Double> row = conditionalCountTable.get(word);
-                        List<TTRRecordType> mappedFeatures = mapFeatures(rInc);
-                        for (TTRRecordType correspondingFeature : mappedFeatures) { // Updates the CountTable with semantic features.
-                            Feature f = new Feature(correspondingFeature);
-                            row.put(f, row.get(f) + 1);
-                        }
-                        if (useDSTypes) {
-                            Double val = row.get(pointedNodeFeature);
-                            row.put(pointedNodeFeature, val + 1); // Updates the CountTable with syntactic features.
-                        }
+                        List<TTRRecordType> mappedFeatures = mapFeatures(rInc, semanticFeatures);
+                        for (TTRRecordType correspondingFeature : mappedFeatures) // Updates the CountTable with semantic features.
+                            table.increment(word, new Feature(correspondingFeature), example.getCount());
+                        if (useDSTypes)
+                            table.increment(word, pointedNodeFeature, example.getCount()); // Updates the CountTable with syntactic features.
                         curEdge = dag.getParentEdge(curTuple);
-//                        curTuple = dag.getParent(curTuple); // AA: Updating curTuple to the previous one (until we get to root).
                     }
                     break; // To prevent checking other parses after finding the correct one.
                 }
-                parsed = parser.parse();
+                parsed = goalDirected ? parser.parse(rG.removeHead()) : parser.parse();
             }
         }
-        normaliseCountTable();
-        System.out.println(features);
-        saveModelToFile();
+        return table;
     }
 
 
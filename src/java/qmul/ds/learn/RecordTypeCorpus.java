@@ -3,10 +3,12 @@ package qmul.ds.learn;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import qmul.ds.GenerationCache;
 import qmul.ds.formula.TTRRecordType;
 import edu.stanford.nlp.ling.Sentence;
 import edu.stanford.nlp.ling.Word;
@@ -106,6 +108,49 @@ public class RecordTypeCorpus extends Corpus<TTRRecordType> implements Serializa
 	}
 
 
+	/**
+	 * A distinct training example of a corpus, with the number of times it occurs
+	 */
+	public static class CountedExample {
+		public final Pair<Sentence<Word>, TTRRecordType> example;
+		private int count = 0;
+
+		CountedExample(Pair<Sentence<Word>, TTRRecordType> example) {
+			this.example = example;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public String toString() {
+			return count + " x " + example;
+		}
+	}
+
+	/**
+	 * Groups the examples of this corpus that have the same sentence and alpha-equivalent record types (up to
+	 * relabelling, see {@link GenerationCache#canonical(qmul.ds.formula.TTRFormula)}), so each only needs to be
+	 * learned from or tested on once, weighted by its count.
+	 * 
+	 * @return the distinct examples, in order of first occurrence, with their counts
+	 */
+	public List<CountedExample> getDistinctExamples() {
+		LinkedHashMap<String, CountedExample> distinct = new LinkedHashMap<String, CountedExample>();
+		for (Pair<Sentence<Word>, TTRRecordType> pair : this) {
+			String key = pair.first() + "\t" + GenerationCache.canonical(pair.second());
+			CountedExample example = distinct.get(key);
+			if (example == null) {
+				example = new CountedExample(pair);
+				distinct.put(key, example);
+			}
+			example.count++;
+		}
+		logger.info(distinct.size() + " distinct examples in corpus of " + size());
+		return new ArrayList<CountedExample>(distinct.values());
+	}
+
+
 	public String getIndexNumber(int i){
 		/**
 		 * returns the index string from its position in the corpus
@@ -1,11 +1,17 @@
 package qmul.ds.learn;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
@@ -21,6 +27,7 @@ import qmul.ds.dag.DAGInductionState;
 import qmul.ds.dag.DAGTuple;
 import qmul.ds.dag.TypeLattice;
 import qmul.ds.dag.TypeLatticeIncrement;
+import qmul.ds.dag.TypeTuple;
 import qmul.ds.dag.UtteredWord;
 import qmul.ds.formula.Formula;
 import qmul.ds.formula.TTRFormula;
@@ -59,6 +66,51 @@ public class TTRHypothesiser extends Hypothesiser {
 	TTRRecordType targetType;  // AA Bad name, better be targetSemantics or sth!
 	int wordDepth = 0;
 
+	public static final int DEFAULT_TRANSPOSITION_CAPACITY = 10000;
+
+	private static final Pattern NUMBERED_VARIABLE = Pattern.compile("\\b[a-zA-Z]+\\d+\\b");
+
+	/**
+	 * Transposition table: search configurations (see {@link #configuration()}) whose subtree has been fully explored
+	 * -> the action sequences found from them to the target (not counting tree hypotheses). The same configuration is
+	 * often reached by applying actions in a different order, so its subtree is replayed from here rather than searched
+	 * again. Kept across training examples: the configuration includes the target and sentence length, so examples with
+	 * the same target share entries.
+	 */
+	private Map<String, List<List<Action>>> transpositions = lruMap(DEFAULT_TRANSPOSITION_CAPACITY);
+	private int transpositionCapacity = DEFAULT_TRANSPOSITION_CAPACITY;
+
+	/**
+	 * A configuration on the current search path whose subtree is still being explored
+	 */
+	private static class OpenConfiguration {
+		final String key;
+		final DAGInductionTuple tuple;
+		final int prefixLength;
+		final List<List<Action>> suffixes = new ArrayList<List<Action>>();
+
+		OpenConfiguration(String key, DAGInductionTuple tuple, int prefixLength) {
+			this.key = key;
+			this.tuple = tuple;
+			this.prefixLength = prefixLength;
+		}
+	}
+
+	private final ArrayDeque<OpenConfiguration> openConfigurations = new ArrayDeque<OpenConfiguration>();
+	private int transpositionHits = 0;
+
+	/**
+	 * Type lattices of recent targets, by target, to be reset & reused for examples (or epochs) with the same target
+	 * rather than built again
+	 */
+	private final Map<String, TypeLattice> lattices = lruMap(100);
+
+	/**
+	 * Memoised {@link TTRRecordType#getFilteredAbstractions(NodeAddress, DSType, boolean)}, by record type, prefix,
+	 * type & filtering
+	 */
+	private final Map<String, List<Tree>> abstractions = lruMap(1000);
+
 	// Stack<ParserTuple> curTreeTargets=new Stack<ParserTuple>();
 
 	public TTRHypothesiser(String resourceDirOrURL, TTRRecordType rt, String sent) {
@@ -70,6 +122,39 @@ public class TTRHypothesiser extends Hypothesiser {
 		super(seedResourceDir);
 	}
 
+	/**
+	 * Sets the number of configurations kept in the transposition table, least recently used first out. 0 turns it
+	 * off. Clears the table.
+	 * 
+	 * @param capacity
+	 */
+	public void setTranspositionCapacity(int capacity) {
+		this.transpositionCapacity = capacity;
+		this.transpositions = lruMap(capacity);
+	}
+
+	/**
+	 * @param capacity
+	 * @return a map that drops its least recently used entry when it grows beyond capacity
+	 */
+	private static <K, V> Map<K, V> lruMap(final int capacity) {
+		return new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the number of times a configuration has been replayed from the transposition table
+	 */
+	public int getTranspositionHits() {
+		return transpositionHits;
+	}
+
 
 	public void loadTrainingExample(String sentence, TTRRecordType target) {
 		if (this.seedLexicon == null || this.optionalGrammar == null
@@ -81,9 +166,15 @@ public class TTRHypothesiser extends Hypothesiser {
 
 		this.state = new DAGInductionState(UtteredWord.getAsUtteredWords(sentence));
 		this.targetType = target;
-		lattice = new TypeLattice(target);
+		lattice = lattices.get(target.toString());
+		if (lattice == null) {
+			lattice = new TypeLattice(target);
+			lattices.put(target.toString(), lattice);
+		} else
+			lattice.reset();
 		// logger.debug(targetType);
 		this.hypotheses.clear();
+		this.openConfigurations.clear();
 		initialise();
 	}
 
@@ -100,7 +191,7 @@ public class TTRHypothesiser extends Hypothesiser {
 			boolean filtered = wholeInc.getHeadField().getDSType().equals(DSType.es);
 			logger.info("Increment: " + wholeInc);
 			logger.info("Now the abstraction trees: ");
-			List<Tree> trees = wholeInc.getFilteredAbstractions(state
+			List<Tree> trees = filteredAbstractions(wholeInc, state
 					.getCurrentTuple().getTree().getPointer(), DSType.t, filtered);
 			for (Tree tree : trees) {
 				logger.info(tree);
@@ -142,7 +233,7 @@ public class TTRHypothesiser extends Hypothesiser {
 			}
 			logger.debug("increment=" + headIncrement);
 			logger.debug(headIncrement.getRecord());
-			List<Tree> trees = headIncrement.getFilteredAbstractions(state
+			List<Tree> trees = filteredAbstractions(headIncrement, state
 					.getCurrentTuple().getTree().getPointer().up(), DSType.t,
 					false);
 			logger.debug("we get here");
@@ -192,7 +283,7 @@ public class TTRHypothesiser extends Hypothesiser {
 		logger.debug("increments on headLabel:" + headLabel);
 		for (List<TypeLatticeIncrement> inc : incSet) {
 			TTRRecordType wholeInc = flatten(inc);
-			List<Tree> nonHeadTrees = wholeInc.getFilteredAbstractions(state
+			List<Tree> nonHeadTrees = filteredAbstractions(wholeInc, state
 					.getCurrentTuple().getTree().getPointer(), DSType.t, false);
 			TTRLabel incHeadLabel = wholeInc.getHeadField().getLabel();
 			TTRRecordType headIncrement;
@@ -203,7 +294,7 @@ public class TTRHypothesiser extends Hypothesiser {
 						TTRRecordType.HEAD);
 			}
 			logger.debug(headIncrement);
-			List<Tree> trees = headIncrement.getFilteredAbstractions(state
+			List<Tree> trees = filteredAbstractions(headIncrement, state
 					.getCurrentTuple().getTree().getPointer(), DSType.t, false);
 
 			for (int i = 0; i < trees.size(); i++) {
@@ -340,7 +431,7 @@ public class TTRHypothesiser extends Hypothesiser {
 			TTRRecordType wholeInc = flatten(inc);
 			logger.debug(wholeInc);
 
-			List<Tree> trees = wholeInc.getFilteredAbstractions(state
+			List<Tree> trees = filteredAbstractions(wholeInc, state
 					.getCurrentTuple().getTree().getPointer().up(), DSType.cn,
 					false);
 			for (Tree tree : trees) {
@@ -363,6 +454,22 @@ public class TTRHypothesiser extends Hypothesiser {
 	}
 
 
+	/**
+	 * @return rt.getFilteredAbstractions(prefix, type, filtering), memoised. The trees are copies, so can be modified.
+	 */
+	private List<Tree> filteredAbstractions(TTRRecordType rt, NodeAddress prefix, DSType type, boolean filtering) {
+		String key = rt + "@" + prefix + ":" + type + (filtering ? "/filtered" : "");
+		List<Tree> trees = abstractions.get(key);
+		if (trees == null) {
+			trees = rt.getFilteredAbstractions(prefix, type, filtering);
+			abstractions.put(key, trees);
+		}
+		List<Tree> result = new ArrayList<Tree>(trees.size());
+		for (Tree tree : trees)
+			result.add(tree.clone());
+		return result;
+	}
+
 	private static TTRRecordType flatten(List<TypeLatticeIncrement> incs) {
 		TTRRecordType result = new TTRRecordType();
 		for (TypeLatticeIncrement inc : incs) {
@@ -376,6 +483,13 @@ public class TTRHypothesiser extends Hypothesiser {
 
 	public CandidateSequence extractSequence() {
 		logger.debug("extracting sequence");
+		return candidateSequence(pathActions());
+	}
+
+	/**
+	 * @return the actions on the path from the root to the current tuple, not counting tree hypotheses
+	 */
+	private ArrayList<Action> pathActions() {
 		DAGInductionTuple current = state.getCurrentTuple();
 		ArrayList<Action> sequence = new ArrayList<Action>();
 		while (!state.isRoot(current)) {
@@ -385,6 +499,10 @@ public class TTRHypothesiser extends Hypothesiser {
 			// logger.debug("adding:"+behind.getAction());
 			current = state.getParent(current);
 		}
+		return sequence;
+	}
+
+	private CandidateSequence candidateSequence(List<Action> sequence) {
 		List<HasWord> words = new ArrayList<HasWord>();
 		for (UtteredWord w : state.wordStack())
 			words.add(0, new Word(w.word()));
@@ -411,21 +529,9 @@ public class TTRHypothesiser extends Hypothesiser {
 				logger.info("have seen enough semantic hyps");
 				logger.info("extracting candidate sequence now");
 				// System.out.print(".");
-				CandidateSequence result = this.extractSequence();
-				logger.info(ANSI_PURPLE + "got sequence:\n" + result + ANSI_RESET);
 				// GOT TO THE TARGET AT LEAST ONCE (if we are here).
-				// if (hypotheses.contains(result))
-				// logger.error("Sequence seen before:"+result);
-
-				this.hypotheses.add(result);
-//				logger.info(this.hypotheses.size() + ": " + result);  // This is the same as the log above!! MODIFIED BY AA.
-				logger.info("Now going for seq number " + this.hypotheses.size() + 1);
-				if (this.hypotheses.size() > 300) {  // what is this hardcoded number?
-					System.out.println("sequences exceeded 300");  // AA better log message needded
-					System.out.println("stopping");
+				if (!addHypothesis(pathActions()))
 					return false;
-				}
-				System.out.print(this.hypotheses.size() + " ");
 				doneWithBranch = true;
 			}
 
@@ -446,8 +552,25 @@ public class TTRHypothesiser extends Hypothesiser {
 		// AA what does the below mean?
 		if (!state.atRoot() && !state.getPrevAction().getName()
 						.startsWith(HYP_ADJUNCTION_PREFIX) && !doneWithBranch) {
-			this.applyLexicalHypotheses(state.getCurrentTuple().getTargetTree());
-			this.applyOptionalGrammar(state.getCurrentTuple().getTargetTree());
+			String key = (transpositionCapacity > 0) ? configuration() : null;
+			List<List<Action>> suffixes = (key == null) ? null : transpositions.get(key);
+			if (suffixes != null) {
+				logger.debug("replaying " + suffixes.size() + " sequences from transposition table");
+				transpositionHits++;
+				List<Action> prefix = pathActions();
+				for (List<Action> suffix : suffixes) {
+					List<Action> sequence = new ArrayList<Action>(prefix);
+					sequence.addAll(suffix);
+					if (!addHypothesis(sequence))
+						return false;
+				}
+			} else {
+				if (key != null)
+					openConfigurations.addLast(new OpenConfiguration(key, state.getCurrentTuple(), pathActions()
+							.size()));
+				this.applyLexicalHypotheses(state.getCurrentTuple().getTargetTree());
+				this.applyOptionalGrammar(state.getCurrentTuple().getTargetTree());
+			}
 		}
 		// ParserTuple result=null;
 		do {
@@ -501,6 +624,86 @@ public class TTRHypothesiser extends Hypothesiser {
 	}
 
 
+	/**
+	 * Adds a hypothesis, and its suffixes to the open configurations on the path to it
+	 * 
+	 * @param sequence
+	 * @return false if there are now too many hypotheses to carry on
+	 */
+	private boolean addHypothesis(List<Action> sequence) {
+		for (OpenConfiguration open : openConfigurations)
+			open.suffixes.add(new ArrayList<Action>(sequence.subList(open.prefixLength, sequence.size())));
+
+		CandidateSequence result = candidateSequence(sequence);
+		logger.info(ANSI_PURPLE + "got sequence:\n" + result + ANSI_RESET);
+		// if (hypotheses.contains(result))
+		// logger.error("Sequence seen before:"+result);
+
+		this.hypotheses.add(result);
+//		logger.info(this.hypotheses.size() + ": " + result);  // This is the same as the log above!! MODIFIED BY AA.
+		logger.info("Now going for seq number " + this.hypotheses.size() + 1);
+		if (this.hypotheses.size() > 300) {  // what is this hardcoded number?
+			System.out.println("sequences exceeded 300");  // AA better log message needded
+			System.out.println("stopping");
+			return false;
+		}
+		System.out.print(this.hypotheses.size() + " ");
+		return true;
+	}
+
+	/**
+	 * The search configuration at the current tuple: everything the search below it depends on, i.e. the target and
+	 * sentence length, the words hypothesised so far, the current tree, the target trees, the position in the type
+	 * lattice, and the trees loop detection compares new ones to. Fresh variables are renamed away, as which ones a
+	 * tree got depends on the order actions were applied in. Two tuples with the same configuration have the same
+	 * sequences to the target from them.
+	 * 
+	 * @return the configuration as a string
+	 */
+	private String configuration() {
+		DAGInductionTuple cur = state.getCurrentTuple();
+		StringBuilder key = new StringBuilder();
+		key.append(state.wordStack().size()).append(' ').append(wordDepth);
+		key.append('\n').append(cur.getTargetTree());
+		key.append('\n').append(cur.getNonHeadTarget());
+		key.append('\n');
+		for (TypeTuple t = lattice.getCurrentTuple(); !lattice.isRoot(t); t = lattice.getParent(t))
+			key.append(lattice.getParentEdge(t)).append(';');
+		DAGInductionTuple t = cur;
+		for (int i = 0; i < state.getLoopDetectionWindow() && t != null; i++) {
+			key.append('\n').append(t.getTree());
+			t = state.getParent(t);
+		}
+		String target = targetType.toString();
+		return target + "\n" + renameVariables(key.toString(), target);
+	}
+
+	/**
+	 * @param s
+	 * @param fixed
+	 * @return s with the numbered variables that don't occur in fixed renamed consistently, in order of first
+	 *         occurrence, so that strings equal up to the fresh variables they were given come out the same
+	 */
+	private static String renameVariables(String s, String fixed) {
+		Map<String, String> names = new HashMap<String, String>();
+		Matcher m = NUMBERED_VARIABLE.matcher(fixed);
+		while (m.find())
+			names.put(m.group(), m.group());
+		int renamed = 0;
+		m = NUMBERED_VARIABLE.matcher(s);
+		StringBuffer result = new StringBuffer();
+		while (m.find()) {
+			String name = names.get(m.group());
+			if (name == null) {
+				name = "_" + renamed++;
+				names.put(m.group(), name);
+			}
+			m.appendReplacement(result, name);
+		}
+		m.appendTail(result);
+		return result.toString();
+	}
+
 	public void applyNonOptionalGrammar(Tree target) {
 		DAGEdge traversed = null;
 		do {
@@ -588,6 +791,10 @@ public class TTRHypothesiser extends Hypothesiser {
 				if (hyp.hasSemanticContent)
 					wordDepth--;
 			}
+			if (!openConfigurations.isEmpty() && openConfigurations.peekLast().tuple == state.getCurrentTuple()) {
+				OpenConfiguration done = openConfigurations.removeLast();
+				transpositions.put(done.key, done.suffixes);
+			}
 			DAGEdge backOver = this.state.goUpOnce();
 			logger.debug("now at:" + state.getCurrentTuple());
 			// mark edge that we're back over as seen (already explored)...
@@ -2,13 +2,23 @@ package qmul.ds.learn;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
+import qmul.ds.action.atomic.EffectFactory;
+import qmul.ds.action.meta.MetaElement;
 import qmul.ds.formula.TTRRecordType;
+import qmul.ds.formula.Variable;
 import edu.stanford.nlp.ling.Sentence;
 import edu.stanford.nlp.ling.Word;
 import edu.stanford.nlp.util.Pair;
@@ -22,6 +32,9 @@ import edu.stanford.nlp.util.Pair;
  * probability estimation/update. This happens incrementally, i.e. one training example at a time as they are
  * encountered in the corpus.
  * 
+ * {@link #learn()} hypothesises & splits a window of upcoming examples at a time on worker threads, each with its own
+ * {@link TTRHypothesiser}, then updates the hypothesis base with them one by one in corpus order.
+ * 
  * @author arash
  * 
  */
@@ -37,8 +50,33 @@ public class TTRWordLearner extends WordLearner<TTRRecordType>{
 	public static final String ANSI_CYAN = "\u001B[36m";
 	public static final String ANSI_RED = "\u001B[31m";
 
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	protected int window = 0;
+	protected int maxSplits = 0;
+	protected boolean deduplicate = false;
+	// the number of times each distinct example being learned from occurs in the corpus, when deduplicating
+	private IdentityHashMap<Pair<Sentence<Word>, TTRRecordType>, Integer> exampleCounts = null;
+
+	/**
+	 * The hypothesise & split stages for one training example, which don't depend on the hypothesis base so can run
+	 * on any thread
+	 */
+	private static class Hypotheses {
+		final Pair<Sentence<Word>, TTRRecordType> entry;
+		/**
+		 * one set of splits per hypothesised sequence, null if the example is to be skipped
+		 */
+		List<Set<List<CandidateSequence>>> splits = null;
+		Exception splitError = null;
+
+		Hypotheses(Pair<Sentence<Word>, TTRRecordType> entry) {
+			this.entry = entry;
+		}
+	}
+
 
 	public TTRWordLearner(String seedResourceDir, RecordTypeCorpus c) {
+		this.seedResourceDir = seedResourceDir;
 		hypothesiser = new TTRHypothesiser(seedResourceDir);
 		corpus = c;
 		this.corpusIterator = corpus.iterator();
@@ -69,6 +107,71 @@ public class TTRWordLearner extends WordLearner<TTRRecordType>{
 	}
 
 
+	/**
+	 * @param threads
+	 *            the number of threads for {@link #learn()} to hypothesise on. With 1, examples are learned one at a
+	 *            time by {@link #learnOnce()}.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param window
+	 *            the number of examples {@link #learn()} hypothesises in parallel before updating the hypothesis base
+	 *            with them, 0 for twice the number of threads
+	 */
+	public void setWindow(int window) {
+		this.window = window;
+	}
+
+	/**
+	 * @param maxSplits
+	 *            the most splits of a hypothesised sequence to learn from, sampled uniformly if there are more (see
+	 *            {@link CandidateSequence#split(int, Random)}). 0 for all of them.
+	 */
+	public void setMaxSplits(int maxSplits) {
+		this.maxSplits = maxSplits;
+	}
+
+	/**
+	 * @param deduplicate
+	 *            if true, learn from each distinct example of the corpus once, weighted by the number of times it
+	 *            occurs (see {@link RecordTypeCorpus#getDistinctExamples()}), rather than from every repetition. This
+	 *            restarts the corpus.
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+		if (corpus != null)
+			resetCorpusIterator();
+	}
+
+	@Override
+	protected String getSettings() {
+		return "deduplicate=" + deduplicate + ",maxSplits=" + maxSplits;
+	}
+
+	@Override
+	public void resetCorpus() {
+		super.resetCorpus();
+		resetCorpusIterator();
+	}
+
+	private void resetCorpusIterator() {
+		if (!deduplicate) {
+			exampleCounts = null;
+			corpusIterator = corpus.iterator();
+			return;
+		}
+		exampleCounts = new IdentityHashMap<Pair<Sentence<Word>, TTRRecordType>, Integer>();
+		List<Pair<Sentence<Word>, TTRRecordType>> examples = new ArrayList<Pair<Sentence<Word>, TTRRecordType>>();
+		for (RecordTypeCorpus.CountedExample e : ((RecordTypeCorpus) corpus).getDistinctExamples()) {
+			examples.add(e.example);
+			exampleCounts.put(e.example, e.getCount());
+		}
+		corpusIterator = examples.iterator();
+	}
+
 	@Override
 	public boolean learnOnce() {
 		if (corpusIterator == null) {
@@ -81,58 +184,145 @@ public class TTRWordLearner extends WordLearner<TTRRecordType>{
 		}
 
 		Pair<Sentence<Word>, TTRRecordType> entry = corpusIterator.next();
+		long time = System.currentTimeMillis();
+		update(hypothesiseAndSplit((TTRHypothesiser) hypothesiser, entry));
+		logger.info("Processing took:"+ (System.currentTimeMillis()-time)/1000 + " seconds");  // AA Not working correctly!
+		// System.out.println("All Done. Prior after " + sentence);
+		// System.out.println(hb.getPrior());
+		return true;
+	}
+
+	/**
+	 * Learns from the rest of the corpus, hypothesising & splitting {@link #window} examples at a time in parallel.
+	 * The candidate sequences of a worker share metavariables with its hypothesiser's grammar, and updating the
+	 * hypothesis base executes their actions, so a window is only added once all its workers are idle. The result is
+	 * the same as learning the examples one at a time.
+	 */
+	@Override
+	public void learn() {
+		if (threads <= 1) {
+			super.learn();
+			return;
+		}
+		if (corpus == null || corpus.isEmpty()) {
+			throw new IllegalStateException("Corpus not loaded or is empty");
+		}
+		int window = (this.window > 0) ? this.window : 2 * threads;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		// each worker loads its own hypothesiser, with its own metavariables and fresh variable counters, the first
+		// time it's used
+		ThreadLocal<TTRHypothesiser> hypothesisers = ThreadLocal.withInitial(() -> {
+			MetaElement.usePrivatePool();
+			Variable.usePrivatePools();
+			// lexicon loading goes through the static macro templates of EffectFactory
+			synchronized (EffectFactory.class) {
+				return new TTRHypothesiser(seedResourceDir);
+			}
+		});
+		try {
+			while (corpusIterator.hasNext()) {
+				List<Future<Hypotheses>> futures = new ArrayList<Future<Hypotheses>>();
+				while (futures.size() < window && corpusIterator.hasNext()) {
+					Pair<Sentence<Word>, TTRRecordType> entry = corpusIterator.next();
+					futures.add(executor.submit(() -> hypothesiseAndSplit(hypothesisers.get(), entry)));
+				}
+				List<Hypotheses> results = new ArrayList<Hypotheses>();
+				for (Future<Hypotheses> future : futures)
+					results.add(future.get());
+				for (Hypotheses h : results)
+					update(h);
+				logger.info("So far processed: " + examplesLearned + " of " + corpus.size() + " with " + threads
+						+ " threads\n");
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Hypothesising failed in worker: " + e.getMessage(), e);
+		} finally {
+			executor.shutdown();
+		}
+		finishCheckpointing();
+	}
+
+	/**
+	 * Hypothesises action sequences for entry with hypothesiser, and splits them
+	 */
+	private Hypotheses hypothesiseAndSplit(TTRHypothesiser hypothesiser, Pair<Sentence<Word>, TTRRecordType> entry) {
+		Hypotheses result = new Hypotheses(entry);
 		logger.info("Hypothesising sequences for utterance: " + entry.first());
 		// logger.info("Hypothesising from training example: "+
 		// sentence+"->"+target);
-		long time = System.currentTimeMillis();
 		Collection<CandidateSequence> hyps = null;
 		try {
-			((TTRHypothesiser)hypothesiser).loadTrainingExample(entry.first(), entry.second());
+			hypothesiser.loadTrainingExample(entry.first(), entry.second());
 			hyps = hypothesiser.hypothesise();
 			logger.info("\n");
 			if (hyps.size() == 0) {
 				logger.warn(ANSI_YELLOW + "NO SEQUENCES RECEIVED from hypothesiser! skipping... " + ANSI_RESET);
 //				System.out.println("no sequences returned, skipping this");
-				skipped.add(entry);
-				return true;
+				return result;
 			}
 		} catch (Exception e) {
 			logger.error("problem hypothesising. Sentence:" + entry);
 			e.printStackTrace();
 			logger.error("Skipping...");
-			skipped.add(entry);
-			return true;
+			return result;
 		}
 		logger.info(ANSI_GREEN +  "Got " + hyps.size() + " sequences from Hypothesiser for "+ entry.second() + ANSI_RESET);
 		logger.info(ANSI_GREEN + "Now splitting the sequences..." + ANSI_RESET);
 		// DAGHypothesiser.printHypMap(hyps);
-		hb.forgetCurrentDist();
+		result.splits = new ArrayList<Set<List<CandidateSequence>>>();
+		// seeded by the example, so sampling doesn't depend on which thread or in what order examples are split
+		Random random = new Random(entry.first().toString().hashCode());
 		int totalSplit = 0;  // AA: Better be called `totalSplits`!
 		int i = 0;
 		try {
 			for (CandidateSequence cs: hyps) {
 				i++;
 				logger.debug("Splitting: " + cs.toShortString());
-				Set<List<CandidateSequence>> splitSequences = cs.split();
+				Set<List<CandidateSequence>> splitSequences = (maxSplits > 0) ? cs.split(maxSplits, random) : cs.split();
 				for (List<CandidateSequence> seq: splitSequences)
 					logger.trace("Result: " + seq);
 				totalSplit += splitSequences.size();
 				logger.trace(i + ":" + splitSequences.size()+ " ");
+				result.splits.add(splitSequences);
+			}
+		} catch (Exception e) {
+			result.splitError = e;
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the split sequences of an example to the hypothesis base and updates its distributions, or adds the
+	 * example to those skipped if there were none. When deduplicating, the example counts as many times as it
+	 * occurs.
+	 * 
+	 * @throws IllegalStateException
+	 *             if updating fails, leaving the hypothesis base inconsistent: learning can be resumed from the last
+	 *             checkpoint (see {@link #resume(File)})
+	 */
+	private void update(Hypotheses h) {
+		int count = (exampleCounts == null) ? 1 : exampleCounts.get(h.entry);
+		if (h.splits == null) {
+			for (int i = 0; i < count; i++)
+				skipped.add(h.entry);
+			exampleLearned();
+			return;
+		}
+		hb.forgetCurrentDist();
+		try {
+			if (h.splitError != null)
+				throw h.splitError;
+			for (Set<List<CandidateSequence>> splitSequences : h.splits) {
 				logger.debug("Adding split sequences to hypothesis base...");
 				hb.addSequenceTuples(splitSequences);
 			}
 			logger.info("\n");
-			this.hb.updateDistsEndOfExample(entry.first());
-			logger.info("Processing took:"+ (System.currentTimeMillis()-time)/1000 + " seconds");  // AA Not working correctly!
+			this.hb.updateDistsEndOfExample(h.entry.first(), count);
 		} catch (Exception e) {
-			logger.fatal("problem while updating distributions on sentence:" + entry);
-			logger.fatal("this is fatal :(");
-			e.printStackTrace();
-			System.exit(1);
+			logger.fatal("problem while updating distributions on sentence:" + h.entry);
+			throw new IllegalStateException("Failed to update distributions on sentence: " + h.entry, e);
 		}
-		// System.out.println("All Done. Prior after " + sentence);
-		// System.out.println(hb.getPrior());
-		return true;
+		exampleLearned();
 	}
 
 
@@ -141,7 +331,7 @@ public class TTRWordLearner extends WordLearner<TTRRecordType>{
 		RecordTypeCorpus c=new RecordTypeCorpus();
 		c.loadCorpus(corpusFile);
 		this.corpus=c;
-		this.corpusIterator=this.corpus.iterator();
+		resetCorpusIterator();
 	}
 
 	
@@ -282,15 +282,18 @@ public class TestParser extends ContextParser {
 
 		if (testCorpus == null)
 			return;
-		Iterator<Pair<Sentence<Word>, TTRRecordType>> corpusIt = testCorpus.iterator();
+		// repeated examples are parsed once, and counted as many times as they occur
+		Iterator<RecordTypeCorpus.CountedExample> corpusIt = testCorpus.getDistinctExamples().iterator();
 		corpusLoop: while (corpusIt.hasNext()) {
 
-			Pair<Sentence<Word>, TTRRecordType> entry = corpusIt.next();
+			RecordTypeCorpus.CountedExample example = corpusIt.next();
+			Pair<Sentence<Word>, TTRRecordType> entry = example.example;
+			int count = example.getCount();
 			/*
 			 * //skipping utterances with unknown words at test time or not? if (this.containsUnknown(entry.first())){
 			 * System.out.println(entry.first()); pause();pause(); continue; }
 			 */
-			total++;
+			total += count;
 			init();
 
 			TTRRecordType[] pair = new TTRRecordType[2];
@@ -303,7 +306,7 @@ public class TestParser extends ContextParser {
 			try {
 				if (parse(entry.first)) {
 					System.out.println("parsed: " + entry.first);
-					parsed++;
+					parsed += count;
 					ParseState<ContextParserTuple> twoBest = getStateWithNBestTuples(10);
 					Iterator<ContextParserTuple> iter = twoBest.iterator();
 
@@ -315,8 +318,9 @@ public class TestParser extends ContextParser {
 						if (ttr.subsumes(targetRT) && targetRT.subsumes(ttr)) {
 							System.out.println("same formula/maximal match");
 							pair[0] = ttr;
-							myttrs.add(pair);
-							sameF++;
+							for (int i = 0; i < count; i++)
+								myttrs.add(pair);
+							sameF += count;
 							continue corpusLoop;
 						} else {
 							float mapped = e.totalNodesMapped(ttr, targetRT);
@@ -334,7 +338,8 @@ public class TestParser extends ContextParser {
 				pair[0] = TTRRecordType.parse("[]");
 			}
 
-			myttrs.add(pair);
+			for (int i = 0; i < count; i++)
+				myttrs.add(pair);
 		}
 
 		List<Float> macro = e.precisionRecallMacro(myttrs);
@@ -3,11 +3,16 @@ package qmul.ds.learn;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,6 +45,12 @@ public class WordHypothesisBase {
 	// this one stores the indeces (rows) in {@link tuples} at which a Word Hypothesis appears.
 	// this is only to make the process of Maximum Likelyhood Estimation faster.
 	private Map<WordHypothesis, Set<Integer>> indeces;
+	// the hypotheses for each word by their intersection signature, see {@link WordHypothesis#intersectionSignature}.
+	// only those with the same signature as a candidate sequence are tried for intersection with it.
+	private Map<HasWord, Map<List<String>, List<WordHypothesis>>> signatureIndex;
+	// candidate sequences (by identity, as split() shares them between splits) that failed to intersect into each
+	// hypothesis in the current training example. Failure is permanent, so these needn't be tried again.
+	private Map<WordHypothesis, Set<CandidateSequence>> failedIntersections;
 	private final static int EM_ROUNDS = 1;
 	private int numTrainingSoFar = 0;
 
@@ -50,6 +61,8 @@ public class WordHypothesisBase {
 		priorDist = new HashMap<HasWord, WordLogProbDistribution>();
 		// priorDistWeights=new HashMap<HasWord, Integer>();
 		indeces = new HashMap<WordHypothesis, Set<Integer>>();
+		signatureIndex = new HashMap<HasWord, Map<List<String>, List<WordHypothesis>>>();
+		failedIntersections = new HashMap<WordHypothesis, Set<CandidateSequence>>();
 	}
 
 	/**
@@ -59,6 +72,9 @@ public class WordHypothesisBase {
 	 * new one will be created. The method always results in adding a {@link List<WordHypothesis>} to the list of
 	 * hypothesis tuples ( {@code this.tuples}) maintained by this hypothesis base.
 	 * 
+	 * Only the existing hypotheses with the same intersection signature as a candidate sequence are tried (at most one
+	 * of them can succeed).
+	 * 
 	 * @param set
 	 */
 	public void addSequenceTuples(Set<List<CandidateSequence>> set) {
@@ -79,12 +95,30 @@ public class WordHypothesisBase {
 				Set<WordHypothesis> existingHyps = priorDist.get(w).getAllHyps();
 				WordHypothesis intersected = null;
 
-				for (WordHypothesis si : existingHyps) {
+				List<String> signature = WordHypothesis.intersectionSignature(cs);
+				if (!signatureIndex.containsKey(w))
+					signatureIndex.put(w, new HashMap<List<String>, List<WordHypothesis>>());
+				List<WordHypothesis> candidates = signatureIndex.get(w).get(signature);
+				if (candidates == null) {
+					candidates = new ArrayList<WordHypothesis>();
+					signatureIndex.get(w).put(signature, candidates);
+				}
+				for (WordHypothesis si : candidates) {
+					if (!existingHyps.contains(si))
+						continue;
+					Set<CandidateSequence> failed = failedIntersections.get(si);
+					if (failed != null && failed.contains(cs))
+						continue;
 					if (si.intersectInto(cs)) {
 						// found compatible existing si
 						intersected = si;
 						break;
 					}
+					if (failed == null) {
+						failed = Collections.newSetFromMap(new IdentityHashMap<CandidateSequence, Boolean>());
+						failedIntersections.put(si, failed);
+					}
+					failed.add(cs);
 				}
 				if (intersected != null) { // managed to find compatible one.
 											// Just duplicate that reference in
@@ -109,6 +143,7 @@ public class WordHypothesisBase {
 					// curDist
 					WordHypothesis newIntersection = new WordHypothesis(priorDist.get(w).getFreshHypID());
 					newIntersection.intersectInto(cs);
+					candidates.add(newIntersection);
 					logger.debug("Could not intersect into existing. Created new hyp:" + newIntersection);
 					newTuple.add(newIntersection);
 					// add new hyp to both distributions with prob 0 (positive
@@ -140,43 +175,18 @@ public class WordHypothesisBase {
 
 	/**
 	 * calculates the log of the normalising factor Z, i.e. log(Z), for the probability distribution over hypotheses for
-	 * w.
+	 * w. A row counts once for each different hypothesis for w in it (e.g. if w occurs twice in a row, the whole row
+	 * counts twice in logZ), so this is the (log) sum of the numerators of w's hypotheses.
 	 * @param w
 	 * @return log(Z)
 	 */
 	public double logZ(HasWord w) {
-		Set<Integer> wordIndeces = new HashSet<Integer>();
-
-		for (WordHypothesis wh : curDist.get(w).getAllHyps()) {
-			wordIndeces.addAll(indeces.get(wh));
-		}
-
-		List<Double> logProducts = new ArrayList<Double>();
-		for (Integer i : wordIndeces) {
-			// adjusting logZ for duplicate words
-			// e.g. if w occurs twice in this row, the whole row should count twice in logZ
-			for (int j = 0; j < countDifferentHypsForWordAt(w, i); j++)
-				logProducts.add(logProbProduct(tuples.get(i)));
-		}
-		return sumLogProb(logProducts);
-	}
-
-	/**
-	 * 
-	 * @param w
-	 * @param index
-	 * @return
-	 */
-	private int countDifferentHypsForWordAt(HasWord w, int index) {
+		Set<WordHypothesis> hyps = curDist.get(w).getAllHyps();
+		double[] numerators = new double[hyps.size()];
 		int i = 0;
-		List<WordHypothesis> tuple = tuples.get(index);
-		Set<WordHypothesis> sofar = new HashSet<WordHypothesis>();
-		for (WordHypothesis h : tuple) {
-			if (h.getWord().equals(w)) {
-				sofar.add(h);
-			}
-		}
-		return sofar.size();
+		for (WordHypothesis wh : hyps)
+			numerators[i++] = logProbNumerator(wh);
+		return sumLogProb(numerators, numerators.length);
 	}
 
 	/**
@@ -187,15 +197,11 @@ public class WordHypothesisBase {
 	 * @return
 	 */
 	private double logProbNumerator(WordHypothesis wh) {
-		List<Double> logProducts = new ArrayList<Double>();
-		for (Integer i : indeces.get(wh)) {
-			logProducts.add(logProbProduct(tuples.get(i)));
-		}
-		return sumLogProb(logProducts);
-	}
-
-	private double getLogProb(WordHypothesis wh, double logZ) {
-		return logProbNumerator(wh) - logZ;
+		double[] logProducts = new double[indeces.get(wh).size()];
+		int j = 0;
+		for (Integer i : indeces.get(wh))
+			logProducts[j++] = logProbProduct(tuples.get(i));
+		return sumLogProb(logProducts, logProducts.length);
 	}
 
 	private double logProbProduct(List<WordHypothesis> tuple) {
@@ -314,41 +320,28 @@ public class WordHypothesisBase {
 	}
 
 	/**
-	 * utility method for the calculation of the (log) sum of a set of probabilities.
+	 * utility method for the calculation of the (log) sum of a set of probabilities, shifted by their maximum so that
+	 * the exponentials can't overflow.
 	 * 
 	 * @param logProbs
+	 * @param n
+	 *            the number of entries of logProbs to sum
 	 * @return
-	 * @throws Exception
 	 */
-	private static double sumLogProb(List<Double> logProbs) {
-		if (logProbs.size() == 1)
-			return logProbs.get(0);
-		double restLogProb = sumLogProb(logProbs.subList(1, logProbs.size()));
-		double exp = Math.exp(restLogProb - logProbs.get(0));
-		// if (restLogProb-logProbs.get(0)>0)
-		// System.out.println("Positive Exp: exp("+(restLogProb-logProbs.get(0))+")");
-		if (Double.isInfinite(exp)) {
-
-			logger.error("Infinite exp(" + (restLogProb - logProbs.get(0)) + ")");
-			logger.error("restLogProb was:" + restLogProb);
-			logger.error("first Log prob was:" + logProbs.get(0));
-			System.exit(1);
-		}
-		if (Double.isNaN(exp)) {
-			logger.error("Infinite exp(" + (restLogProb - logProbs.get(0)) + ")");
-			System.exit(1);
-		}
-		double logSum = logProbs.get(0) + Math.log(1 + exp);
-		if (Double.isNaN(logSum)) {
-			logger.error("NaN logSum for:" + logProbs);
-			logger.error("Rest log prob:" + restLogProb);
-
-		} else if (Double.isInfinite(logSum)) {
-			logger.error("Infinite logSum for: " + logProbs);
-			logger.error("Rest log prob:" + restLogProb);
-
-		}
-
+	private static double sumLogProb(double[] logProbs, int n) {
+		if (n == 1)
+			return logProbs[0];
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++)
+			max = Math.max(max, logProbs[i]);
+		if (Double.isInfinite(max))
+			return max;
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += Math.exp(logProbs[i] - max);
+		double logSum = max + Math.log(sum);
+		if (Double.isNaN(logSum))
+			logger.error("NaN logSum for:" + Arrays.toString(Arrays.copyOf(logProbs, n)));
 		return logSum;
 	}
 
@@ -359,21 +352,83 @@ public class WordHypothesisBase {
 		return false;
 	}
 
+	/**
+	 * Re-estimates the current distribution from the tuples of the current example, n times. Works on primitive arrays
+	 * indexed by hypothesis and row, with the log product of each row computed once per round rather than for every
+	 * word and hypothesis that it contains.
+	 */
 	private void performLocalEM(int n) {
+		// dense ids for the hypotheses in the current distribution, grouped by word
+		List<WordHypothesis> hyps = new ArrayList<WordHypothesis>();
+		Map<WordHypothesis, Integer> ids = new HashMap<WordHypothesis, Integer>();
+		List<HasWord> words = new ArrayList<HasWord>(curDist.keySet());
+		int[] wordStart = new int[words.size() + 1];
+		for (int w = 0; w < words.size(); w++) {
+			wordStart[w] = hyps.size();
+			for (WordHypothesis wh : curDist.get(words.get(w)).keySet()) {
+				ids.put(wh, hyps.size());
+				hyps.add(wh);
+			}
+		}
+		wordStart[words.size()] = hyps.size();
+
+		int[][] rows = new int[tuples.size()][];
+		for (int r = 0; r < rows.length; r++) {
+			List<WordHypothesis> tuple = tuples.get(r);
+			rows[r] = new int[tuple.size()];
+			for (int j = 0; j < tuple.size(); j++)
+				rows[r][j] = ids.get(tuple.get(j));
+		}
+		int[][] hypRows = new int[hyps.size()][];
+		int maxRows = 0;
+		for (int h = 0; h < hypRows.length; h++) {
+			Set<Integer> hypIndeces = indeces.get(hyps.get(h));
+			hypRows[h] = new int[hypIndeces.size()];
+			int j = 0;
+			for (Integer r : hypIndeces)
+				hypRows[h][j++] = r;
+			maxRows = Math.max(maxRows, j);
+		}
+
+		double[] logProbs = new double[hyps.size()];
+		for (int w = 0; w < words.size(); w++) {
+			WordLogProbDistribution dist = curDist.get(words.get(w));
+			for (int h = wordStart[w]; h < wordStart[w + 1]; h++)
+				logProbs[h] = dist.get(hyps.get(h));
+		}
+
+		double[] rowLogProducts = new double[rows.length];
+		double[] numerators = new double[hyps.size()];
+		double[] scratch = new double[maxRows];
 		for (int i = 0; i < n; i++) {
-			Map<HasWord, Map<WordHypothesis, Double>> newDist = new HashMap<HasWord, Map<WordHypothesis, Double>>();
-			for (HasWord w : curDist.keySet()) {
-				double logZ = logZ(w);
-				Map<WordHypothesis, Double> thisWordDist = new HashMap<WordHypothesis, Double>();
-				for (WordHypothesis wh : curDist.get(w).keySet()) {
-					thisWordDist.put(wh, getLogProb(wh, logZ));
+			for (int r = 0; r < rows.length; r++) {
+				double logSum = 0;
+				for (int h : rows[r]) {
+					if (logProbs[h] > 0)
+						throw new IllegalStateException("Hypothesis " + hyps.get(h)
+								+ " should have negative log prob. Assign initial (uniform) probabilities first");
+					logSum += logProbs[h];
 				}
-				newDist.put(w, thisWordDist);
+				rowLogProducts[r] = logSum;
 			}
-			for (HasWord w : newDist.keySet()) {
-				curDist.get(w).clear();
-				curDist.get(w).putAll(newDist.get(w));
+			for (int h = 0; h < hyps.size(); h++) {
+				for (int j = 0; j < hypRows[h].length; j++)
+					scratch[j] = rowLogProducts[hypRows[h][j]];
+				numerators[h] = sumLogProb(scratch, hypRows[h].length);
 			}
+			for (int w = 0; w < words.size(); w++) {
+				int from = wordStart[w];
+				double logZ = sumLogProb(Arrays.copyOfRange(numerators, from, wordStart[w + 1]),
+						wordStart[w + 1] - from);
+				for (int h = from; h < wordStart[w + 1]; h++)
+					logProbs[h] = numerators[h] - logZ;
+			}
+		}
+
+		for (int w = 0; w < words.size(); w++) {
+			WordLogProbDistribution dist = curDist.get(words.get(w));
+			for (int h = wordStart[w]; h < wordStart[w + 1]; h++)
+				dist.put(hyps.get(h), logProbs[h]);
 		}
 	}
 
@@ -401,6 +456,22 @@ public class WordHypothesisBase {
 		this.tuples.clear();
 		this.curDist.clear();
 		this.indeces.clear();
+		this.failedIntersections.clear();
+		// hypotheses which didn't make it into the prior are never tried again, so needn't be indexed
+		for (Map.Entry<HasWord, Map<List<String>, List<WordHypothesis>>> word : signatureIndex.entrySet()) {
+			WordLogProbDistribution prior = priorDist.get(word.getKey());
+			Iterator<List<WordHypothesis>> lists = word.getValue().values().iterator();
+			while (lists.hasNext()) {
+				List<WordHypothesis> hyps = lists.next();
+				if (prior == null)
+					hyps.clear();
+				else
+					hyps.retainAll(prior.getAllHyps());
+				if (hyps.isEmpty())
+					lists.remove();
+			}
+		}
+		signatureIndex.values().removeIf(Map::isEmpty);
 		logger.info("tuples now has " + tuples.size() + " rows");
 	}
 
@@ -415,33 +486,81 @@ public class WordHypothesisBase {
 	public void reset() {
 		this.forgetCurrentDist();
 		this.priorDist.clear();
+		this.signatureIndex.clear();
+	}
+
+	/**
+	 * Writes the state of this base to out, for {@link #readState(ObjectInputStream)} to restore: the hypothesis
+	 * tuples, current & prior distributions (and so the hypotheses themselves), the indexes into them, and the number
+	 * of examples learned from. Written as one object graph, so hypotheses shared between them stay shared.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeState(ObjectOutputStream out) throws IOException {
+		out.writeInt(numTrainingSoFar);
+		out.writeObject(tuples);
+		out.writeObject(curDist);
+		out.writeObject(priorDist);
+		out.writeObject(indeces);
+		out.writeObject(signatureIndex);
+	}
+
+	/**
+	 * Replaces the state of this base with that written by {@link #writeState(ObjectOutputStream)}
+	 * 
+	 * @param in
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	@SuppressWarnings("unchecked")
+	public void readState(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		numTrainingSoFar = in.readInt();
+		tuples = (List<List<WordHypothesis>>) in.readObject();
+		curDist = (Map<HasWord, WordLogProbDistribution>) in.readObject();
+		priorDist = (Map<HasWord, WordLogProbDistribution>) in.readObject();
+		indeces = (Map<WordHypothesis, Set<Integer>>) in.readObject();
+		signatureIndex = (Map<HasWord, Map<List<String>, List<WordHypothesis>>>) in.readObject();
+		failedIntersections.clear();
 	}
 
 	public void exampleEnded() {
 	}
 
 	public void updateDistsEndOfExample(Collection<Word> sentence) {
+		updateDistsEndOfExample(sentence, 1.0);
+	}
+
+	/**
+	 * Updates the distributions from the current example as if it had occurred weight times: the prior is discounted,
+	 * and the example's estimate mixed in, in proportion to weight.
+	 * 
+	 * @param sentence
+	 * @param weight
+	 *            e.g. the number of times the example occurs in the corpus
+	 */
+	public void updateDistsEndOfExample(Collection<Word> sentence, double weight) {
 		logger.info("Updating hypothesis probability distributions.... " );
 		printHypNumbers(sentence);
 		if (this.tuples.isEmpty())
 			return;
 		logger.debug("priorDist before discounting:" + priorDist);
-		discountPrior(sentence);
+		discountPrior(sentence, weight);
 		logger.debug("priorDist after discounting:" + priorDist);
 		loadPriorIntoCur(sentence);
 		logger.debug("curDist after loading prior:" + curDist);
-		initCurUniform(sentence);
+		initCurUniform(sentence, weight);
 		logger.debug("curDist after init uniform:" + curDist);
 
 		performLocalEM(EM_ROUNDS);
 		logger.info("After EM curDis:" + curDist);
 		// aggregateDistributions();
-		this.loadCurIntoPrior();
+		this.loadCurIntoPrior(weight);
 
 		// System.out.println("After loading into cur:" + priorDist);
 		//prune(20);
 		//System.out.println("After pruning prior" + priorDist);
-		incrementPriorWeights(sentence, 1.0);
+		incrementPriorWeights(sentence, weight);
 
 		// this.forgetCurrentDist();
 		loadLogProbsIntoHyps(sentence);
@@ -457,7 +576,7 @@ public class WordHypothesisBase {
 		System.out.println();
 	}
 
-	private void discountPrior(Collection<Word> sentence) {
+	private void discountPrior(Collection<Word> sentence, double weight) {
 		// remove duplicates
 		HashSet<Word> words = new HashSet<Word>(sentence);
 		for (HasWord w : words) {
@@ -468,16 +587,16 @@ public class WordHypothesisBase {
 				throw new IllegalArgumentException("trying to discount distribution for non-existing hyp");
 			}
 			WordLogProbDistribution priorDistW = priorDist.get(w);
-			priorDistW.discount(priorDistW.getWeight() / (priorDistW.getWeight() + 1));
+			priorDistW.discount(priorDistW.getWeight() / (priorDistW.getWeight() + weight));
 		}
 	}
 
-	private void initCurUniform(Collection<Word> sentence) {
+	private void initCurUniform(Collection<Word> sentence, double weight) {
 		// remove duplicate
 		HashSet<Word> words = new HashSet<Word>(sentence);
 		for (HasWord w : words) {
 			if (curDist.containsKey(w)) {
-				curDist.get(w).fillZerosUniform(1 / (this.priorDist.get(w).getWeight() + 1));
+				curDist.get(w).fillZerosUniform(weight / (this.priorDist.get(w).getWeight() + weight));
 			} else
 				throw new IllegalArgumentException("Word " + w + " not in cur");
 		}
@@ -503,13 +622,13 @@ public class WordHypothesisBase {
 	 * This should be called ONLY after aggregation and second EM
 	 * 
 	 */
-	private void loadCurIntoPrior() {
+	private void loadCurIntoPrior(double weight) {
 		for (HasWord w : curDist.keySet()) {
 			WordLogProbDistribution wPrior = priorDist.get(w);
 			WordLogProbDistribution wCur = curDist.get(w);
 			for (WordHypothesis wh : wCur.keySet()) {
 
-				double newProb = wPrior.getProb(wh) + (1 / (priorDist.get(w).getWeight() + 1))
+				double newProb = wPrior.getProb(wh) + (weight / (priorDist.get(w).getWeight() + weight))
 						* curDist.get(w).getProb(wh);
 				wPrior.put(wh, Math.log(newProb));
 			}
@@ -1,11 +1,31 @@
 package qmul.ds.learn;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.Console;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
@@ -42,6 +62,16 @@ public abstract class WordLearner<T> {
 	public String seedResourceDir = "resource\\2023-english-ttr-induction-seed".replace("\\", File.separator);  // added by Arash A.
 
 	Corpus<T> skipped=new Corpus<T>();
+
+	public static final int CHECKPOINT_MAGIC = 0x4453434b; // DSCK
+	public static final int CHECKPOINT_VERSION = 2;
+
+	// the number of examples of the corpus iterator learned from (or skipped) since it was last reset
+	int examplesLearned = 0;
+	File checkpointFile = null;
+	int checkpointEvery = 0;
+	private ExecutorService checkpointWriter = null;
+	private Future<?> pendingCheckpoint = null;
 	
 	
 	public void writeCorpusToFile(Corpus<T> corpus, String file) throws IOException
@@ -83,11 +113,187 @@ public abstract class WordLearner<T> {
 	public void reset() {
 		corpus = null;
 		hb.reset();
+		examplesLearned = 0;
 	}
 
 	public void resetCorpus() {
 		this.corpusIterator = corpus.iterator();
 		hb.reset();
+		examplesLearned = 0;
+	}
+
+	/**
+	 * @param file
+	 *            the file to checkpoint the state of learning to, so that it can be {@link #resume(File)}d after a crash.
+	 *            null to stop checkpointing.
+	 * @param every
+	 *            checkpoint after every this many examples, as well as at the end of {@link #learn()}. 0 for only at
+	 *            the end.
+	 */
+	public void setCheckpointing(File file, int every) {
+		this.checkpointFile = file;
+		this.checkpointEvery = every;
+	}
+
+	/**
+	 * To be called by subclasses once they're done with an example from the corpus iterator, whether learned from or
+	 * skipped. Checkpoints if one is due.
+	 */
+	protected void exampleLearned() {
+		examplesLearned++;
+		if (checkpointFile != null && checkpointEvery > 0 && examplesLearned % checkpointEvery == 0)
+			checkpointQuietly();
+	}
+
+	private void checkpointQuietly() {
+		try {
+			checkpoint();
+		} catch (IOException e) {
+			logger.error("Failed to checkpoint to " + checkpointFile + ", carrying on learning", e);
+		}
+	}
+
+	/**
+	 * Checkpoints the hypothesis base, the skipped examples and the position in the corpus to the checkpoint file, as
+	 * gzipped java serialization. The state is serialized here, as learning would change it, but it's compressed &
+	 * written to disk in the background, via a temporary file so that a crash mid-write leaves the previous checkpoint
+	 * intact.
+	 * 
+	 * @throws IOException
+	 *             if serializing fails, or writing the previous checkpoint did
+	 */
+	public void checkpoint() throws IOException {
+		if (checkpointFile == null)
+			throw new IllegalStateException("No checkpoint file set");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeInt(corpus.size());
+			out.writeObject(corpusDigest());
+			out.writeUTF(getSettings());
+			out.writeInt(examplesLearned);
+			out.writeObject(skipped);
+			hb.writeState(out);
+		}
+		awaitCheckpoint();
+
+		final byte[] state = bytes.toByteArray();
+		final File file = checkpointFile;
+		final int n = examplesLearned;
+		if (checkpointWriter == null) {
+			checkpointWriter = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "checkpoint-writer");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		pendingCheckpoint = checkpointWriter.submit(() -> {
+			File tmp = new File(file.getPath() + ".tmp");
+			try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				out.write(state);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Checkpointed after " + n + " examples to " + file);
+			return null;
+		});
+	}
+
+	/**
+	 * Waits for the checkpoint being written in the background, if any, to be on disk
+	 * 
+	 * @throws IOException
+	 *             if writing it failed
+	 */
+	public void awaitCheckpoint() throws IOException {
+		if (pendingCheckpoint == null)
+			return;
+		try {
+			pendingCheckpoint.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for checkpoint to be written", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Writing checkpoint failed: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			pendingCheckpoint = null;
+		}
+	}
+
+	/**
+	 * @return a digest of the sentences & semantics of the corpus, in order, to tell if a checkpoint is of it
+	 */
+	private byte[] corpusDigest() {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (Pair<Sentence<Word>, T> example : corpus) {
+			digest.update(example.first().toString().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+			digest.update(example.second().toString().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Subclasses with settings that change what is learned from the corpus, or the order it is learned in, should
+	 * override this, so that a checkpoint is only resumed with the settings it was written with.
+	 * 
+	 * @return the settings, as a string. By default, empty.
+	 */
+	protected String getSettings() {
+		return "";
+	}
+
+	/**
+	 * Restores the state of learning from a checkpoint written by {@link #checkpoint()}, and moves the corpus iterator
+	 * past the examples already learned from, so that {@link #learn()} carries on where it left off. The same corpus
+	 * must be loaded, with the same settings, as when the checkpoint was written.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 *             if file isn't a checkpoint, or is of a different corpus, or was written with different settings
+	 * @throws ClassNotFoundException
+	 */
+	@SuppressWarnings("unchecked")
+	public void resume(File file) throws IOException, ClassNotFoundException {
+		if (corpus == null)
+			throw new IllegalStateException("Corpus not loaded");
+		resetCorpus();
+		try (ObjectInputStream in = new ObjectInputStream(
+				new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != CHECKPOINT_MAGIC)
+				throw new IOException(file + " is not a learner checkpoint");
+			int version = in.readInt();
+			if (version != CHECKPOINT_VERSION)
+				throw new IOException("Unsupported checkpoint version " + version + " in " + file);
+			int size = in.readInt();
+			if (size != corpus.size())
+				throw new IOException("Checkpoint " + file + " is of a corpus of " + size + " examples, not "
+						+ corpus.size());
+			if (!Arrays.equals((byte[]) in.readObject(), corpusDigest()))
+				throw new IOException("Checkpoint " + file + " is of a different corpus");
+			String settings = in.readUTF();
+			if (!settings.equals(getSettings()))
+				throw new IOException("Checkpoint " + file + " was written with settings " + settings + ", not "
+						+ getSettings());
+			int n = in.readInt();
+			skipped = (Corpus<T>) in.readObject();
+			hb.readState(in);
+			for (int i = 0; i < n; i++) {
+				if (!corpusIterator.hasNext())
+					throw new IOException("Checkpoint " + file + " is past the end of the corpus");
+				corpusIterator.next();
+			}
+			examplesLearned = n;
+		}
+		logger.info("Resumed from " + file + " after " + examplesLearned + " examples");
 	}
 
 
@@ -95,10 +301,23 @@ public abstract class WordLearner<T> {
 		if (corpus == null || corpus.isEmpty()) {
 			throw new IllegalStateException("Corpus not loaded or is empty");
 		}
-		int i=0;
 		while (learnOnce()) {
-			i++;
-			logger.info("So far processed: "+i+" of " + corpus.size() + "\n");
+			logger.info("So far processed: "+examplesLearned+" of " + corpus.size() + "\n");
+		}
+		finishCheckpointing();
+	}
+
+	/**
+	 * Checkpoints at the end of learning, if checkpointing, and waits for it to be written
+	 */
+	protected void finishCheckpointing() {
+		if (checkpointFile == null)
+			return;
+		checkpointQuietly();
+		try {
+			awaitCheckpoint();
+		} catch (IOException e) {
+			logger.error("Failed to checkpoint to " + checkpointFile, e);
 		}
 	}
 
@@ -11,6 +11,8 @@ package qmul.ds.tree;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -349,10 +351,77 @@ public class NodeAddress implements Comparable<NodeAddress>, Serializable {
 		}
 	}
 
+	/**
+	 * @param t
+	 * @param modality
+	 * @return the addresses of the nodes in t that we can get to from this node via modality, in tree order. This is
+	 *         the same relation as {@link #to(Tree, NodeAddress, Modality)}, but computed directly from the operators:
+	 *         fixed paths lead to a single address, and \/* and \/U expand to the address range below this node in
+	 *         t, so the rest of the tree is never looked at.
+	 */
+	public SortedSet<NodeAddress> reachable(Tree t, Modality modality) {
+		SortedSet<NodeAddress> result = new TreeSet<NodeAddress>();
+		reachable(t, modality.getOps(), 0, result);
+		return result;
+	}
+
+	private void reachable(Tree t, List<BasicOperator> ops, int i, SortedSet<NodeAddress> result) {
+		if (i == ops.size()) {
+			if (t.containsKey(this))
+				result.add(this);
+			return;
+		}
+		BasicOperator op = ops.get(i);
+		if (op.isUp()) {
+			if (op.isFixed()) {
+				NodeAddress n = go(op);
+				if (n != null)
+					n.reachable(t, ops, i + 1, result);
+			} else if (!this.isLocallyFixed()) {
+				NodeAddress n;
+				if (op.isStar() && this.isLocallyUnfixed())
+					n = go(BasicOperator.UP_LOCAL_UNFIXED);
+				else
+					n = go(op);
+
+				if (n != null)
+					n.reachable(t, ops, i + 1, result);
+			} else {
+				for (NodeAddress n : goUpStarExpand())
+					n.reachable(t, ops, i + 1, result);
+			}
+		} else if (!op.getPath().isEmpty()) {
+			NodeAddress n = go(op);
+			boolean last = (i == ops.size() - 1);
+			if (op.isFixed()) {
+				n.reachable(t, ops, i + 1, result);
+			} else if (op.isStar() && t.containsKey(go(BasicOperator.DOWN_LOCAL_UNFIXED))) {
+				go(BasicOperator.DOWN_LOCAL_UNFIXED).reachable(t, ops, i + 1, result);
+			} else if (!last && t.containsKey(n)) {
+				n.reachable(t, ops, i + 1, result);
+			} else if (!last) {
+				throw new UnsupportedOperationException();
+			} else {
+				result.addAll(op.isU() ? goDownLocalUnfixedExpand(t) : goDownStarExpand(t));
+			}
+		} else {
+			throw new RuntimeException("not implemented yet: checking down operators with empty path");
+		}
+	}
+
+	/**
+	 * @param t
+	 * @return the addresses in t strictly below this one, i.e. those with this address as a proper prefix. Since
+	 *         addresses are ordered as strings, these form a contiguous range of t's keys.
+	 */
+	private SortedSet<NodeAddress> addressesBelow(Tree t) {
+		return t.subMap(this, false, new NodeAddress(address + Character.MAX_VALUE), false).navigableKeySet();
+	}
+
 	private ArrayList<NodeAddress> goDownStarExpand(Tree t) {
 		
 		ArrayList<NodeAddress> result = new ArrayList<NodeAddress>();
-		for (NodeAddress na : t.keySet()) {
+		for (NodeAddress na : addressesBelow(t)) {
 			
 			if (na.getAddress().startsWith(this.address)) {
 				String rest = "";
@@ -374,7 +443,7 @@ public class NodeAddress implements Comparable<NodeAddress>, Serializable {
 
 	private ArrayList<NodeAddress> goDownLocalUnfixedExpand(Tree t) {
 		ArrayList<NodeAddress> result = new ArrayList<NodeAddress>();
-		for (NodeAddress na : t.keySet()) {
+		for (NodeAddress na : addressesBelow(t)) {
 			if (na.getAddress().startsWith(this.address)) {
 				String rest = "";
 				if (na.getAddress().length() > this.address.length()) {
@@ -10,6 +10,7 @@ package qmul.ds.tree.label;
 
 import java.util.ArrayList;
 import java.util.ListIterator;
+import java.util.NavigableSet;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -85,6 +86,34 @@ public class ContextualActionLabel extends Label {
 		ContextParserTuple context = ((ContextParserTuple) contextTuple).getPrevious();
 		while (context != null) {
 
+			NavigableSet<Long> candidates = context.getTriggerCandidates(requiredTriggers);
+			if (candidates != null) {
+				// indexed lookup: the most recent effect with all the required triggers
+				for (long position : candidates) {
+					LexicalAction la = context.getLexicalAction(position);
+					IfThenElse ite = (IfThenElse) la.getEffects()[ContextParserTuple.effectIndex(position)];
+					boolean found = true;
+					for (Label l : this.requiredTriggers) {
+						if (!ite.hasTrigger(l)) {
+							found = false;
+							break;
+						}
+					}
+					if (found) {
+						ActionSequence subsequence = new ActionSequence();
+						subsequence.addAll(context.getActionsFrom(position));
+						logger.debug("check succeeded");
+						logger.debug("instatiating metaactionsequence with subsequence length:" + subsequence.size());
+						return this.actionSequence.equals(subsequence);
+					}
+				}
+				if (actionSequence instanceof MetaActionSequence) {
+					((MetaActionSequence) actionSequence).getMeta().reset();
+				}
+				context = context.getPrevious();
+				continue;
+			}
+
 			ListIterator<Action> i = context.getActionsByRecency();
 
 			ActionSequence subsequence = new ActionSequence();
@@ -30,7 +30,7 @@ public class LabelFactory {
 	 * @param type
 	 * @return
 	 */
-	public static Label get(DSType type) {
+	public static synchronized Label get(DSType type) {
 		Label label = typeLabels.get(type);
 		if (label == null) {
 			label = new TypeLabel(type);
@@ -45,7 +45,7 @@ public class LabelFactory {
 	 * @param formula
 	 * @return
 	 */
-	public static Label get(Formula formula) {
+	public static synchronized Label get(Formula formula) {
 		Label label = formulaLabels.get(formula);
 		if (label == null) {
 			label = new FormulaLabel(formula);
@@ -60,7 +60,7 @@ public class LabelFactory {
 	 * @param feature
 	 * @return
 	 */
-	public static Label get(String feature) {
+	public static synchronized Label get(String feature) {
 		Label label = featureLabels.get(feature);
 		if (label == null) {
 			label = new FeatureLabel(feature);
@@ -75,7 +75,7 @@ public class LabelFactory {
 	 * @param label
 	 * @return
 	 */
-	public static Requirement getRequirement(Label label) {
+	public static synchronized Requirement getRequirement(Label label) {
 		Requirement req = reqLabels.get(label);
 		if (req == null) {
 			req = new Requirement(label);
@@ -27,7 +27,9 @@ import qmul.ds.dag.DAGTuple;
 import qmul.ds.tree.BasicOperator;
 import qmul.ds.tree.Modality;
 import qmul.ds.tree.Node;
+import qmul.ds.tree.NodeAddress;
 import qmul.ds.tree.Tree;
+import qmul.ds.type.DSType;
 
 /**
  * A modal label <X>L for some modality X, some label L
@@ -158,9 +160,10 @@ public class ModalLabel extends EmbeddedLabelGroup {
 		// success (i.e. must uninstantiate on failure)
 		boolean meta = ((modality instanceof MetaModality) && (((MetaModality) modality)
 				.getValue() == null));
-		for (Node node : tree.getNodes()) {
+		List<Node> candidates = reachableNodes(tree, pointedNode);
+		for (Node node : (candidates == null ? tree.getNodes() : candidates)) {
 
-			if (modality.relates(tree, pointedNode, node)) {
+			if (candidates != null || modality.relates(tree, pointedNode, node)) {
 
 				if (checkLabelsConj(node)) {
 					logger.debug("Modal Label check succeeded");
@@ -194,56 +197,50 @@ public class ModalLabel extends EmbeddedLabelGroup {
 				&& !modality.getOps().isEmpty()&&modality.getOps().get(0).isUp()
 				&& modality.getOps().get(0).getPath()
 						.equals(BasicOperator.PATH_CONTEXT)) {
-			U previous = context.getCurrentTuple();
-			if (previous==null)
+			U current = context.getCurrentTuple();
+			if (current==null)
 			{
 				logger.error("Current tuple is null!");
 				return false;
 			}
 			// TODO option to restrict context search depth to 1,2 etc here - or
 			// could be in modality path quantifier?
-			// currently searching whole trees for labels
-			int depth=1;
-			int index=0;
-			//Restricting it to the trees just before new clauses or complete trees
-			do {
-				if (index==depth)
-					break;
-				logger.debug("Checking tuple: "+previous);
-				if (context.getDAG().getParentEdge(previous)!=null && context.getDAG().getParentEdge(previous).initiatesNewClause())
-				{
-					logger.debug("found new clause edge");
-					previous=context.getParent(previous);
-				}
-				else if (previous.getTree().isComplete())
-				{
-					
-				}
-				else
+			// Restricting it to the tree just before the current clause, or the
+			// last complete tree (looked up, rather than walked to, on each check).
+			U previous = context.getDAG().getContextAntecedent(current);
+			if (previous==null)
+			{
+				logger.debug("modal label check failed");
+				return false;
+			}
+			logger.debug("checking "+super.toString()+" on tree:"+previous.getTree());
+			Tree contextTree=previous.getTree();
+			Node pointed=contextTree.getPointedNode();
+			// only nodes with the right type can satisfy a (fixed) type label
+			DSType type=null;
+			for(Label l: labels)
+			{
+				if (l.getClass().equals(TypeLabel.class) && l.getMetas().isEmpty())
 				{
-					logger.debug("going up");
-					continue;
-				
+					type=((TypeLabel)l).getType();
+					break;
 				}
-				logger.debug("checking "+super.toString()+" on tree:"+previous.getTree());
-				Node pointed=previous.getTree().getPointedNode();
-				NodeLoop:
-				for(Node n: previous.getTree().values())
+			}
+			NodeLoop:
+			for(NodeAddress address: context.getDAG().getContextNodes(previous, type))
+			{
+				contextTree.setPointer(address);
+				this.resetMetas();
+				for(Label l: labels)
 				{
-					previous.getTree().setPointer(n.getAddress());
-					this.resetMetas();
-					for(Label l: labels)
-					{
-						if (!l.check(previous.getTree(), context))
-							continue NodeLoop;
-					}
-					
-					previous.getTree().setPointer(pointed.getAddress());
-					return true;
+					if (!l.check(contextTree, context))
+						continue NodeLoop;
 				}
-				index++;
 				
-			} while((previous = context.getParent(previous))!=null);
+				contextTree.setPointer(pointed.getAddress());
+				return true;
+			}
+			contextTree.setPointer(pointed.getAddress());
 			logger.debug("modal label check failed");
 			return false;
 		}
@@ -259,9 +256,10 @@ public class ModalLabel extends EmbeddedLabelGroup {
 		boolean meta = ((modality instanceof MetaModality) && (((MetaModality) modality)
 				.getValue() == null));
 		
-		for (Node node : tree.getNodes()) {
+		List<Node> candidates = reachableNodes(tree, pointedNode);
+		for (Node node : (candidates == null ? tree.getNodes() : candidates)) {
 
-			if (modality.relates(tree, pointedNode, node)) {
+			if (candidates != null || modality.relates(tree, pointedNode, node)) {
 				//System.out.println(modality+" relates "+pointedNode+" and "+node);
 				
 				tree.setPointer(node.getAddress());
@@ -285,6 +283,27 @@ public class ModalLabel extends EmbeddedLabelGroup {
 		return false;
 	}
 
+	/**
+	 * @param tree
+	 * @param pointedNode
+	 * @return the nodes of tree related to pointedNode by the modality, in tree order, looked up by address (see
+	 *         {@link NodeAddress#reachable(Tree, Modality)}) rather than by testing every node. null if the modality
+	 *         is an uninstantiated metavariable, which can only be instantiated by trying each node in turn.
+	 */
+	private List<Node> reachableNodes(Tree tree, Node pointedNode) {
+		Modality m = modality;
+		while (m instanceof MetaModality) {
+			m = ((MetaModality) m).getValue();
+			if (m == null)
+				return null;
+		}
+		List<Node> result = new ArrayList<Node>();
+		for (NodeAddress address : pointedNode.getAddress().reachable(tree, m))
+			result.add(tree.get(address));
+
+		return result;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -405,4 +424,4 @@ public class ModalLabel extends EmbeddedLabelGroup {
 		logger.debug(l);
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file